@@ -0,0 +1,68 @@
+/* Host replacement for the NDK bitmap API. Works with the host stand-in of
+ * android.graphics.Bitmap, whose pixels live in a direct buffer. */
+#ifndef _ANDROID_BITMAP_H
+#define _ANDROID_BITMAP_H
+
+#include <stdint.h>
+#include <jni.h>
+
+#define ANDROID_BITMAP_RESULT_SUCCESS 0
+#define ANDROID_BITMAP_RESULT_BAD_PARAMETER -1
+#define ANDROID_BITMAP_RESULT_JNI_EXCEPTION -2
+#define ANDROID_BITMAP_RESULT_ALLOCATION_FAILED -3
+
+enum AndroidBitmapFormat {
+	ANDROID_BITMAP_FORMAT_NONE = 0,
+	ANDROID_BITMAP_FORMAT_RGBA_8888 = 1,
+	ANDROID_BITMAP_FORMAT_RGB_565 = 4,
+	ANDROID_BITMAP_FORMAT_RGBA_4444 = 7,
+	ANDROID_BITMAP_FORMAT_A_8 = 8,
+};
+
+typedef struct {
+	uint32_t width;
+	uint32_t height;
+	uint32_t stride;
+	int32_t format;
+	uint32_t flags;
+} AndroidBitmapInfo;
+
+static inline int AndroidBitmap_getInfo(JNIEnv *env, jobject bitmap,
+		AndroidBitmapInfo *info) {
+	jclass cls;
+	if (bitmap == NULL) {
+		return ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+	}
+	cls = (*env)->GetObjectClass(env, bitmap);
+	info->width = (*env)->GetIntField(env, bitmap,
+			(*env)->GetFieldID(env, cls, "mWidth", "I"));
+	info->height = (*env)->GetIntField(env, bitmap,
+			(*env)->GetFieldID(env, cls, "mHeight", "I"));
+	info->stride = (*env)->GetIntField(env, bitmap,
+			(*env)->GetFieldID(env, cls, "mStride", "I"));
+	info->format = (*env)->GetIntField(env, bitmap,
+			(*env)->GetFieldID(env, cls, "mFormat", "I"));
+	info->flags = 0;
+	return ANDROID_BITMAP_RESULT_SUCCESS;
+}
+
+static inline int AndroidBitmap_lockPixels(JNIEnv *env, jobject bitmap,
+		void **pixels) {
+	jclass cls;
+	jobject buf;
+	if (bitmap == NULL) {
+		return ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+	}
+	cls = (*env)->GetObjectClass(env, bitmap);
+	buf = (*env)->GetObjectField(env, bitmap,
+			(*env)->GetFieldID(env, cls, "mPixels", "Ljava/nio/ByteBuffer;"));
+	*pixels = (buf == NULL ? NULL : (*env)->GetDirectBufferAddress(env, buf));
+	return *pixels == NULL ? ANDROID_BITMAP_RESULT_BAD_PARAMETER :
+		ANDROID_BITMAP_RESULT_SUCCESS;
+}
+
+static inline int AndroidBitmap_unlockPixels(JNIEnv *env, jobject bitmap) {
+	return ANDROID_BITMAP_RESULT_SUCCESS;
+}
+
+#endif
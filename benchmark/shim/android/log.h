@@ -0,0 +1,29 @@
+/* Host replacement for the NDK log API, messages go to stderr */
+#ifndef _ANDROID_LOG_H
+#define _ANDROID_LOG_H
+
+#include <stdio.h>
+#include <stdarg.h>
+
+#define ANDROID_LOG_VERBOSE 2
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_WARN 5
+#define ANDROID_LOG_ERROR 6
+
+static inline int __android_log_print(int prio, const char *tag,
+		const char *fmt, ...) {
+	va_list ap;
+	int n;
+	if (prio < ANDROID_LOG_WARN) {
+		return 0;
+	}
+	va_start(ap, fmt);
+	fprintf(stderr, "%s: ", tag);
+	n = vfprintf(stderr, fmt, ap);
+	fputc('\n', stderr);
+	va_end(ap);
+	return n;
+}
+
+#endif
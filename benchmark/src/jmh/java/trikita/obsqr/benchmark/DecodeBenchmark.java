@@ -0,0 +1,143 @@
+package trikita.obsqr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Rect;
+import trikita.obsqr.QrDecoder;
+import trikita.obsqr.QrPayload;
+
+/* Decodes generated NV21 frames with the zbar QrDecoder. Throughput is
+ * reported in frames per second, latency as sampled percentiles (p50, p99).
+ * Run with the gc profiler to get allocation rate per frame.
+ */
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+	/* Frames are cycled, so that the decoder never sees the same frame twice
+	 * in a row, like with a real camera */
+	private final static int FRAMES = 8;
+	/* Viewfinder side of the camera tuning, a fraction of the shorter
+	 * frame side */
+	private final static float VIEWFINDER = 0.75f;
+
+	@Param({"640x480", "1280x720", "1920x1080"})
+	public String resolution;
+
+	/* Module size in pixels */
+	@Param({"3", "6"})
+	public int module;
+
+	@Param({"CLEAN", "BLUR", "ROTATED", "NOISY", "EMPTY"})
+	public FrameCorpus.Scene scene;
+
+	/* "default" decoder settings over the whole frame, or the ones of
+	 * DecodePipeline for camera preview, with codes inside a centered
+	 * viewfinder that is the only area scanned, as with use_viewfinder
+	 * enabled. Frames are cycled, so the
+	 * tracked code is lost on every frame and each decode pays for a
+	 * missed tracking window as well. */
+	@Param({"default", "camera"})
+	public String tuning;
+
+	/* Legacy camera path returning a String or filling a QrPayload, or the
+	 * Camera2 path reading the Y plane from a direct buffer */
+	@Param({"string", "payload", "buffer"})
+	public String api;
+
+	private QrDecoder mDecoder;
+	private final QrPayload mPayload = new QrPayload();
+	private byte[][] mFrames;
+	private ByteBuffer[] mBuffers;
+	private Rect mRoi;
+	private int mWidth;
+	private int mHeight;
+	private int mNext;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String[] size = resolution.split("x");
+		mWidth = Integer.parseInt(size[0]);
+		mHeight = Integer.parseInt(size[1]);
+		FrameCorpus corpus = new FrameCorpus(new File(System.getProperty("corpus.dir")));
+
+		mDecoder = new QrDecoder(null);
+		if (tuning.equals("camera")) {
+			// Same as DecodePipeline.start()
+			mDecoder.setAdaptiveScanDensity(1, 3);
+			mDecoder.setDownscaledScan(2);
+			mDecoder.setTracking(true);
+			int side = (int) (Math.min(mWidth, mHeight) * VIEWFINDER);
+			int x = (mWidth - side) / 2;
+			int y = (mHeight - side) / 2;
+			mRoi = new Rect(x, y, x + side, y + side);
+			mFrames = corpus.generate(FRAMES, mWidth, mHeight, mRoi, module, scene, 42);
+		} else {
+			mFrames = corpus.generate(FRAMES, mWidth, mHeight, module, scene, 42);
+		}
+		mBuffers = new ByteBuffer[FRAMES];
+		for (int i = 0; i < FRAMES; i++) {
+			mBuffers[i] = ByteBuffer.allocateDirect(mWidth * mHeight);
+			mBuffers[i].put(mFrames[i], 0, mWidth * mHeight);
+		}
+
+		// Corpus sanity check, empty frames have nothing to decode and
+		// clean ones must be readable
+		int decoded = 0;
+		for (int i = 0; i < FRAMES; i++) {
+			if (decodeNext()) {
+				decoded++;
+			}
+		}
+		if (scene == FrameCorpus.Scene.EMPTY ? decoded > 0 :
+				scene == FrameCorpus.Scene.CLEAN && decoded == 0) {
+			throw new IllegalStateException(scene + " scene decoded " + decoded +
+					" of " + FRAMES + " frames");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDecoder.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean framesPerSecond() {
+		return decodeNext();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public boolean latency() {
+		return decodeNext();
+	}
+
+	private boolean decodeNext() {
+		int i = mNext;
+		mNext = (mNext + 1) % FRAMES;
+		switch (api) {
+			case "payload":
+				return mDecoder.decode(mFrames[i], mWidth, mHeight, mRoi, mPayload);
+			case "buffer":
+				return mDecoder.decode(mBuffers[i], mWidth, mHeight, mWidth, mRoi, mPayload);
+			default:
+				return mDecoder.decode(mFrames[i], mWidth, mHeight, mRoi) != null;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package trikita.obsqr.benchmark;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Kernel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import android.graphics.Rect;
+
+/* Generates NV21 camera-like frames from the QR images of the instrumented
+ * tests. Each frame puts one of the codes on a shaded background, scaled to
+ * the requested module size and optionally rotated, blurred or noisy.
+ * Codes may be kept inside an area of the frame, like a viewfinder.
+ * Frames are reproducible, the same seed always gives the same corpus.
+ */
+public class FrameCorpus {
+
+	public enum Scene {
+		CLEAN, BLUR, ROTATED, NOISY, EMPTY
+	}
+
+	/* Test images, the area of the code with its quiet zone (x, y, size)
+	 * and approximate size of that area in modules */
+	private final static String[] IMAGES = { "qr1.png", "qr2.png", "qr3.png" };
+	private final static int[][] IMAGE_CROPS = {
+		{ 0, 0, 90 }, { 125, 265, 265 }, { 160, 105, 105 }
+	};
+	private final static int[] IMAGE_MODULES = { 30, 28, 29 };
+
+	private final BufferedImage[] mImages = new BufferedImage[IMAGES.length];
+
+	public FrameCorpus(File dir) throws IOException {
+		for (int i = 0; i < IMAGES.length; i++) {
+			int[] crop = IMAGE_CROPS[i];
+			mImages[i] = toGray(ImageIO.read(new File(dir, IMAGES[i]))
+					.getSubimage(crop[0], crop[1], crop[2], crop[2]));
+		}
+	}
+
+	public byte[][] generate(int count, int width, int height, int moduleSize,
+			Scene scene, long seed) {
+		return generate(count, width, height, new Rect(0, 0, width, height),
+				moduleSize, scene, seed);
+	}
+
+	/* Codes are placed inside the area */
+	public byte[][] generate(int count, int width, int height, Rect area, int moduleSize,
+			Scene scene, long seed) {
+		Random random = new Random(seed);
+		byte[][] frames = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			frames[i] = frame(width, height, area, moduleSize, scene, i % mImages.length,
+					random);
+		}
+		return frames;
+	}
+
+	private byte[] frame(int width, int height, Rect area, int moduleSize, Scene scene,
+			int index, Random random) {
+		BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = frame.createGraphics();
+
+		// Uneven lighting, like a sheet of paper under a lamp
+		int base = 90 + random.nextInt(60);
+		for (int x = 0; x < width; x += 8) {
+			int shade = base + 40 * x / width;
+			g.setColor(new java.awt.Color(shade, shade, shade));
+			g.fillRect(x, 0, 8, height);
+		}
+
+		if (scene != Scene.EMPTY) {
+			BufferedImage code = mImages[index];
+			int size = IMAGE_MODULES[index] * moduleSize;
+			int side = Math.min(area.width(), area.height());
+			size = Math.min(size, side * 9 / 10);
+			double angle = (scene == Scene.ROTATED ? 10 + random.nextInt(35) : 0);
+			// Rotated corners stick out by up to 21%, the code itself must
+			// never leave the area
+			int margin = Math.min((int) Math.ceil(size * 0.21), (side - size) / 2);
+			int x = area.left + margin +
+				random.nextInt(Math.max(1, area.width() - size - 2 * margin));
+			int y = area.top + margin +
+				random.nextInt(Math.max(1, area.height() - size - 2 * margin));
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+			g.rotate(Math.toRadians(angle), x + size / 2, y + size / 2);
+			g.drawImage(code, x, y, size, size, null);
+		}
+		g.dispose();
+
+		if (scene == Scene.BLUR) {
+			frame = blur(frame, Math.max(3, moduleSize * 2 / 3 | 1));
+		}
+
+		byte[] luma = ((DataBufferByte) frame.getRaster().getDataBuffer()).getData();
+		if (scene == Scene.NOISY) {
+			for (int i = 0; i < luma.length; i++) {
+				int v = (luma[i] & 0xff) + (int) (random.nextGaussian() * 16);
+				luma[i] = (byte) Math.max(0, Math.min(255, v));
+			}
+		}
+
+		// NV21 is full-resolution luma followed by interleaved VU at quarter
+		// resolution, neutral chroma is enough for a luma-only decoder
+		byte[] nv21 = new byte[width * height * 3 / 2];
+		System.arraycopy(luma, 0, nv21, 0, width * height);
+		java.util.Arrays.fill(nv21, width * height, nv21.length, (byte) 128);
+		return nv21;
+	}
+
+	private static BufferedImage blur(BufferedImage src, int radius) {
+		float[] weights = new float[radius * radius];
+		java.util.Arrays.fill(weights, 1f / weights.length);
+		ConvolveOp op = new ConvolveOp(new Kernel(radius, radius, weights),
+				ConvolveOp.EDGE_NO_OP, null);
+		return op.filter(src, null);
+	}
+
+	private static BufferedImage toGray(BufferedImage src) {
+		BufferedImage gray = new BufferedImage(src.getWidth(), src.getHeight(),
+				BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = gray.createGraphics();
+		g.drawImage(src, 0, 0, null);
+		g.dispose();
+		return gray;
+	}
+}
@@ -0,0 +1,5 @@
+package android.content;
+
+/* Host stand-in, the zbar decoder does not use its context */
+public class Context {
+}
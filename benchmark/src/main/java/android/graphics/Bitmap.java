@@ -0,0 +1,116 @@
+package android.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/* Host stand-in for the subset of android.graphics.Bitmap used by QrDecoder.
+ * Pixels are kept in a direct buffer in the NDK layout, so that the bitmap.h
+ * shim can lock them. Only ARGB_8888 and RGB_565 are supported. */
+public final class Bitmap {
+
+	public enum Config {
+		ALPHA_8, RGB_565, ARGB_4444, ARGB_8888
+	}
+
+	/* Read by the bitmap.h shim */
+	private final int mWidth;
+	private final int mHeight;
+	private final int mStride;
+	private final int mFormat;
+	private final ByteBuffer mPixels;
+	private final Config mConfig;
+
+	private Bitmap(int width, int height, Config config) {
+		if (config != Config.ARGB_8888 && config != Config.RGB_565) {
+			throw new IllegalArgumentException("Unsupported config " + config);
+		}
+		mWidth = width;
+		mHeight = height;
+		mConfig = config;
+		mStride = width * (config == Config.ARGB_8888 ? 4 : 2);
+		mFormat = (config == Config.ARGB_8888 ? 1 : 4);
+		mPixels = ByteBuffer.allocateDirect(mStride * height).order(ByteOrder.nativeOrder());
+	}
+
+	public static Bitmap createBitmap(int[] colors, int width, int height, Config config) {
+		Bitmap bitmap = new Bitmap(width, height, config);
+		bitmap.setPixels(colors, 0, width, 0, 0, width, height);
+		return bitmap;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public Config getConfig() {
+		return mConfig;
+	}
+
+	public Bitmap copy(Config config, boolean isMutable) {
+		int[] colors = new int[mWidth * mHeight];
+		getPixels(colors, 0, mWidth, 0, 0, mWidth, mHeight);
+		return createBitmap(colors, mWidth, mHeight, config);
+	}
+
+	public void recycle() {
+	}
+
+	public void getPixels(int[] colors, int offset, int stride, int x, int y, int width,
+			int height) {
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				colors[offset + j * stride + i] = getPixel(x + i, y + j);
+			}
+		}
+	}
+
+	public void setPixels(int[] colors, int offset, int stride, int x, int y, int width,
+			int height) {
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				setPixel(x + i, y + j, colors[offset + j * stride + i]);
+			}
+		}
+	}
+
+	/* Colors are stored premultiplied as RGBA bytes, like on Android */
+	private void setPixel(int x, int y, int color) {
+		int a = color >>> 24;
+		int r = ((color >> 16) & 0xff) * a / 255;
+		int g = ((color >> 8) & 0xff) * a / 255;
+		int b = (color & 0xff) * a / 255;
+		if (mConfig == Config.ARGB_8888) {
+			int o = y * mStride + x * 4;
+			mPixels.put(o, (byte) r).put(o + 1, (byte) g).put(o + 2, (byte) b).put(o + 3, (byte) a);
+		} else {
+			mPixels.putShort(y * mStride + x * 2,
+					(short) (((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3)));
+		}
+	}
+
+	private int getPixel(int x, int y) {
+		int r, g, b, a = 0xff;
+		if (mConfig == Config.ARGB_8888) {
+			int o = y * mStride + x * 4;
+			a = mPixels.get(o + 3) & 0xff;
+			r = mPixels.get(o) & 0xff;
+			g = mPixels.get(o + 1) & 0xff;
+			b = mPixels.get(o + 2) & 0xff;
+			if (a != 0) {
+				r = r * 255 / a;
+				g = g * 255 / a;
+				b = b * 255 / a;
+			}
+		} else {
+			int p = mPixels.getShort(y * mStride + x * 2) & 0xffff;
+			r = (p >> 11) << 3;
+			g = ((p >> 5) & 0x3f) << 2;
+			b = (p & 0x1f) << 3;
+		}
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,14 @@
+package android.graphics;
+
+/* Host stand-in for the subset of android.graphics.Point used by QrResults */
+public class Point {
+	public int x;
+	public int y;
+
+	public Point() {}
+
+	public Point(int x, int y) {
+		this.x = x;
+		this.y = y;
+	}
+}
@@ -0,0 +1,98 @@
+package android.graphics;
+
+/* Host stand-in for the subset of android.graphics.Rect used by QrDecoder */
+public final class Rect {
+	public int left;
+	public int top;
+	public int right;
+	public int bottom;
+
+	public Rect() {}
+
+	public Rect(int left, int top, int right, int bottom) {
+		set(left, top, right, bottom);
+	}
+
+	public Rect(Rect r) {
+		set(r);
+	}
+
+	public void set(int left, int top, int right, int bottom) {
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+
+	public void set(Rect r) {
+		set(r.left, r.top, r.right, r.bottom);
+	}
+
+	public void setEmpty() {
+		left = top = right = bottom = 0;
+	}
+
+	public boolean isEmpty() {
+		return left >= right || top >= bottom;
+	}
+
+	public int width() {
+		return right - left;
+	}
+
+	public int height() {
+		return bottom - top;
+	}
+
+	public int centerX() {
+		return (left + right) >> 1;
+	}
+
+	public int centerY() {
+		return (top + bottom) >> 1;
+	}
+
+	public void offset(int dx, int dy) {
+		left += dx;
+		top += dy;
+		right += dx;
+		bottom += dy;
+	}
+
+	public boolean contains(int x, int y) {
+		return left < right && top < bottom &&
+			x >= left && x < right && y >= top && y < bottom;
+	}
+
+	public boolean intersect(int l, int t, int r, int b) {
+		if (left < r && l < right && top < b && t < bottom) {
+			if (left < l) left = l;
+			if (top < t) top = t;
+			if (right > r) right = r;
+			if (bottom > b) bottom = b;
+			return true;
+		}
+		return false;
+	}
+
+	public boolean intersect(Rect r) {
+		return intersect(r.left, r.top, r.right, r.bottom);
+	}
+
+	public void union(Rect r) {
+		if (r.isEmpty()) return;
+		if (isEmpty()) {
+			set(r);
+			return;
+		}
+		left = Math.min(left, r.left);
+		top = Math.min(top, r.top);
+		right = Math.max(right, r.right);
+		bottom = Math.max(bottom, r.bottom);
+	}
+
+	@Override
+	public String toString() {
+		return "Rect(" + left + ", " + top + " - " + right + ", " + bottom + ")";
+	}
+}
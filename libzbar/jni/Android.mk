@@ -29,12 +29,21 @@ LOCAL_SRC_FILES := convert.c decoder.c error.c image.c img_scanner.c \
 	\
 	processor/null.c video/null.c window/null.c \
 	\
-	decoder/codabar.c decoder/code128.c decoder/code39.c decoder/code93.c \
-	decoder/databar.c decoder/ean.c decoder/i25.c decoder/qr_finder.c \
+	decoder/qr_finder.c \
 	\
 	iconv.c trikita_zbar.c
 	
 LOCAL_CFLAGS := -I$(LOCAL_PATH) -I$(LOCAL_PATH)/$(LIBICONV)
-LOCAL_LDLIBS := -llog
+
+# Build with ZBAR_QR_ONLY=1 (e.g. `ndk-build ZBAR_QR_ONLY=1`) to leave
+# linear barcode decoders out of libzbar.so
+ifeq ($(ZBAR_QR_ONLY),1)
+LOCAL_CFLAGS += -DZBAR_QR_ONLY
+else
+LOCAL_SRC_FILES += \
+	decoder/codabar.c decoder/code128.c decoder/code39.c decoder/code93.c \
+	decoder/databar.c decoder/ean.c decoder/i25.c
+endif
+LOCAL_LDLIBS := -llog -ljnigraphics
 
 include $(BUILD_SHARED_LIBRARY)
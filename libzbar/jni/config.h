@@ -1,6 +1,10 @@
 /* include/config.h.  Generated from config.h.in by configure.  */
 /* include/config.h.in.  Generated from configure.ac by autoheader.  */
 
+/* ZBAR_QR_ONLY leaves all linear symbologies out of the build,
+ * see ZBAR_QR_ONLY in Android.mk */
+#ifndef ZBAR_QR_ONLY
+
 /* whether to build support for Code 128 symbology */
 #define ENABLE_CODE128 1
 
@@ -22,6 +26,8 @@
 /* whether to build support for Interleaved 2 of 5 symbology */
 #define ENABLE_I25 1
 
+#endif /* ZBAR_QR_ONLY */
+
 /* whether to build support for PDF417 symbology */
 /*#undef ENABLE_PDF417*/
 
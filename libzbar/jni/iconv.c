@@ -1,4 +1,5 @@
 #include <stdlib.h>
+#include <string.h>
 #include <iconv.h>
 
 #include <android/log.h>
@@ -626,6 +626,26 @@ zbar_image_scanner_get_results (const zbar_image_scanner_t *iscn)
     return(iscn->syms);
 }
 
+int zbar_image_scanner_get_qr_finder_lines (const zbar_image_scanner_t *iscn,
+                                            int direction)
+{
+#ifdef ENABLE_QRCODE
+    return(_zbar_qr_get_finder_lines(iscn->qr, direction));
+#else
+    return(0);
+#endif
+}
+
+int zbar_image_scanner_get_qr_finder_bbox (const zbar_image_scanner_t *iscn,
+                                           int bbox[4])
+{
+#ifdef ENABLE_QRCODE
+    return(_zbar_qr_get_finder_bbox(iscn->qr, bbox));
+#else
+    return(0);
+#endif
+}
+
 static inline void quiet_border (zbar_image_scanner_t *iscn)
 {
     /* flush scanner pipeline */
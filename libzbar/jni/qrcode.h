@@ -59,6 +59,10 @@ void _zbar_qr_reset(qr_reader *reader);
 int _zbar_qr_found_line(qr_reader *reader,
                         int direction,
                         const qr_finder_line *line);
+int _zbar_qr_get_finder_lines(const qr_reader *reader,
+                              int direction);
+int _zbar_qr_get_finder_bbox(const qr_reader *reader,
+                             int bbox[4]);
 int _zbar_qr_decode(qr_reader *reader,
                     zbar_image_scanner_t *iscn,
                     zbar_image_t *img);
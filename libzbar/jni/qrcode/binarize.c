@@ -234,7 +234,7 @@ static void qr_sauvola_mask(unsigned char *_mask,unsigned *_b,int *_nb,
       col2_sums[x]=(g2<<logwindh-1)+g2;
     }
     for(y=1;y<(windh>>1);y++){
-      y1offs=QR_MINI(y,_height-1)*_width;
+      y1offs=QR_MINI(y,_height-1)*_stride;
       for(x=0;x<_width;x++){
         g=_img[y1offs+x];
         col_sums[x]+=g;
@@ -298,8 +298,8 @@ static void qr_sauvola_mask(unsigned char *_mask,unsigned *_b,int *_nb,
       }
       /*Update the column sums.*/
       if(y+1<_height){
-        y0offs=QR_MAXI(0,y-(windh>>1))*_width;
-        y1offs=QR_MINI(y+(windh>>1),_height-1)*_width;
+        y0offs=QR_MAXI(0,y-(windh>>1))*_stride;
+        y1offs=QR_MINI(y+(windh>>1),_height-1)*_stride;
         for(x=0;x<_width;x++){
           g=_img[y0offs+x];
           col_sums[x]-=g;
@@ -397,8 +397,8 @@ static void qr_interpolate_background(unsigned char *_dst,
       }
       /*Update the column sums.*/
       if(y+1<_height){
-        y0offs=QR_MAXI(0,y-(windh>>1))*_width;
-        y1offs=QR_MINI(y+(windh>>1),_height-1)*_width;
+        y0offs=QR_MAXI(0,y-(windh>>1))*_stride;
+        y1offs=QR_MINI(y+(windh>>1),_height-1)*_stride;
         for(x=0;x<_width;x++){
           if(!_mask[y0offs+x]){
             col_sums[x]-=_img[y0offs+x];
@@ -519,11 +519,188 @@ void qr_binarize(unsigned char *_img,int _width,int _height){
 
 /*A simplified adaptive thresholder.
   This compares the current pixel value to the mean value of a (large) window
-   surrounding it.*/
-unsigned char *qr_binarize(const unsigned char *_img,int _width,int _height){
+   surrounding it.
+  The per-row work is split into kernels that update the column sums and
+   threshold a row against precomputed window sums.
+  Both have NEON and SSE2 versions, picked by target ABI, which must produce
+   exactly the same mask as the scalar ones.*/
+
+/*Slides the column sums down by one row: _col_sums[x]+=_add[x]-_sub[x].*/
+static void qr_col_sums_update_c(unsigned *_col_sums,
+ const unsigned char *_sub,const unsigned char *_add,int _width){
+  int x;
+  for(x=0;x<_width;x++){
+    _col_sums[x]-=_sub[x];
+    _col_sums[x]+=_add[x];
+  }
+}
+
+/*Performs the test against the threshold T = (m/n)-D, where n=windw*windh
+   and D=3, given the window sum m for each pixel of the row.*/
+static void qr_threshold_row_c(unsigned char *_mask,
+ const unsigned char *_img,const unsigned *_m,int _width,int _logwind){
+  int x;
+  for(x=0;x<_width;x++){
+    unsigned g;
+    g=_img[x];
+    _mask[x]=-(g+3<<_logwind<_m[x])&0xFF;
+  }
+}
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+# include <arm_neon.h>
+# define QR_BINARIZE_SIMD (1)
+
+static void qr_col_sums_update_simd(unsigned *_col_sums,
+ const unsigned char *_sub,const unsigned char *_add,int _width){
+  int x;
+  for(x=0;x+16<=_width;x+=16){
+    uint16x8_t sub_lo;
+    uint16x8_t sub_hi;
+    uint16x8_t add_lo;
+    uint16x8_t add_hi;
+    uint32x4_t s0;
+    uint32x4_t s1;
+    uint32x4_t s2;
+    uint32x4_t s3;
+    uint8x16_t sub;
+    uint8x16_t add;
+    sub=vld1q_u8(_sub+x);
+    add=vld1q_u8(_add+x);
+    sub_lo=vmovl_u8(vget_low_u8(sub));
+    sub_hi=vmovl_u8(vget_high_u8(sub));
+    add_lo=vmovl_u8(vget_low_u8(add));
+    add_hi=vmovl_u8(vget_high_u8(add));
+    s0=vld1q_u32(_col_sums+x);
+    s1=vld1q_u32(_col_sums+x+4);
+    s2=vld1q_u32(_col_sums+x+8);
+    s3=vld1q_u32(_col_sums+x+12);
+    s0=vaddw_u16(vsubw_u16(s0,vget_low_u16(sub_lo)),vget_low_u16(add_lo));
+    s1=vaddw_u16(vsubw_u16(s1,vget_high_u16(sub_lo)),vget_high_u16(add_lo));
+    s2=vaddw_u16(vsubw_u16(s2,vget_low_u16(sub_hi)),vget_low_u16(add_hi));
+    s3=vaddw_u16(vsubw_u16(s3,vget_high_u16(sub_hi)),vget_high_u16(add_hi));
+    vst1q_u32(_col_sums+x,s0);
+    vst1q_u32(_col_sums+x+4,s1);
+    vst1q_u32(_col_sums+x+8,s2);
+    vst1q_u32(_col_sums+x+12,s3);
+  }
+  qr_col_sums_update_c(_col_sums+x,_sub+x,_add+x,_width-x);
+}
+
+static void qr_threshold_row_simd(unsigned char *_mask,
+ const unsigned char *_img,const unsigned *_m,int _width,int _logwind){
+  uint32x4_t d;
+  int32x4_t  shift;
+  int        x;
+  d=vdupq_n_u32(3);
+  shift=vdupq_n_s32(_logwind);
+  for(x=0;x+16<=_width;x+=16){
+    uint8x16_t g;
+    uint16x8_t lo;
+    uint16x8_t hi;
+    uint32x4_t t0;
+    uint32x4_t t1;
+    uint32x4_t t2;
+    uint32x4_t t3;
+    g=vld1q_u8(_img+x);
+    lo=vmovl_u8(vget_low_u8(g));
+    hi=vmovl_u8(vget_high_u8(g));
+    t0=vshlq_u32(vaddw_u16(d,vget_low_u16(lo)),shift);
+    t1=vshlq_u32(vaddw_u16(d,vget_high_u16(lo)),shift);
+    t2=vshlq_u32(vaddw_u16(d,vget_low_u16(hi)),shift);
+    t3=vshlq_u32(vaddw_u16(d,vget_high_u16(hi)),shift);
+    t0=vcltq_u32(t0,vld1q_u32(_m+x));
+    t1=vcltq_u32(t1,vld1q_u32(_m+x+4));
+    t2=vcltq_u32(t2,vld1q_u32(_m+x+8));
+    t3=vcltq_u32(t3,vld1q_u32(_m+x+12));
+    lo=vcombine_u16(vmovn_u32(t0),vmovn_u32(t1));
+    hi=vcombine_u16(vmovn_u32(t2),vmovn_u32(t3));
+    vst1q_u8(_mask+x,vcombine_u8(vmovn_u16(lo),vmovn_u16(hi)));
+  }
+  qr_threshold_row_c(_mask+x,_img+x,_m+x,_width-x,_logwind);
+}
+
+#elif defined(__SSE2__)
+# include <emmintrin.h>
+# define QR_BINARIZE_SIMD (1)
+
+static void qr_col_sums_update_simd(unsigned *_col_sums,
+ const unsigned char *_sub,const unsigned char *_add,int _width){
+  __m128i zero;
+  int     x;
+  zero=_mm_setzero_si128();
+  for(x=0;x+16<=_width;x+=16){
+    __m128i sub;
+    __m128i add;
+    __m128i sub16;
+    __m128i add16;
+    __m128i s;
+    int     i;
+    sub=_mm_loadu_si128((const __m128i *)(_sub+x));
+    add=_mm_loadu_si128((const __m128i *)(_add+x));
+    for(i=0;i<2;i++){
+      sub16=i?_mm_unpackhi_epi8(sub,zero):_mm_unpacklo_epi8(sub,zero);
+      add16=i?_mm_unpackhi_epi8(add,zero):_mm_unpacklo_epi8(add,zero);
+      s=_mm_loadu_si128((const __m128i *)(_col_sums+x+8*i));
+      s=_mm_sub_epi32(s,_mm_unpacklo_epi16(sub16,zero));
+      s=_mm_add_epi32(s,_mm_unpacklo_epi16(add16,zero));
+      _mm_storeu_si128((__m128i *)(_col_sums+x+8*i),s);
+      s=_mm_loadu_si128((const __m128i *)(_col_sums+x+8*i+4));
+      s=_mm_sub_epi32(s,_mm_unpackhi_epi16(sub16,zero));
+      s=_mm_add_epi32(s,_mm_unpackhi_epi16(add16,zero));
+      _mm_storeu_si128((__m128i *)(_col_sums+x+8*i+4),s);
+    }
+  }
+  qr_col_sums_update_c(_col_sums+x,_sub+x,_add+x,_width-x);
+}
+
+/*Window sums and thresholds stay below 2**23, so the signed comparison
+   gives the same result as the unsigned one.*/
+static void qr_threshold_row_simd(unsigned char *_mask,
+ const unsigned char *_img,const unsigned *_m,int _width,int _logwind){
+  __m128i zero;
+  __m128i d;
+  __m128i shift;
+  int     x;
+  zero=_mm_setzero_si128();
+  d=_mm_set1_epi32(3);
+  shift=_mm_cvtsi32_si128(_logwind);
+  for(x=0;x+16<=_width;x+=16){
+    __m128i g;
+    __m128i g16;
+    __m128i t[4];
+    int     i;
+    g=_mm_loadu_si128((const __m128i *)(_img+x));
+    for(i=0;i<2;i++){
+      g16=i?_mm_unpackhi_epi8(g,zero):_mm_unpacklo_epi8(g,zero);
+      t[2*i]=_mm_sll_epi32(_mm_add_epi32(_mm_unpacklo_epi16(g16,zero),d),
+       shift);
+      t[2*i+1]=_mm_sll_epi32(_mm_add_epi32(_mm_unpackhi_epi16(g16,zero),d),
+       shift);
+    }
+    for(i=0;i<4;i++){
+      t[i]=_mm_cmplt_epi32(t[i],
+       _mm_loadu_si128((const __m128i *)(_m+x+4*i)));
+    }
+    _mm_storeu_si128((__m128i *)(_mask+x),_mm_packs_epi16(
+     _mm_packs_epi32(t[0],t[1]),_mm_packs_epi32(t[2],t[3])));
+  }
+  qr_threshold_row_c(_mask+x,_img+x,_m+x,_width-x,_logwind);
+}
+#endif
+
+typedef void (*qr_col_sums_update_func)(unsigned *_col_sums,
+ const unsigned char *_sub,const unsigned char *_add,int _width);
+typedef void (*qr_threshold_row_func)(unsigned char *_mask,
+ const unsigned char *_img,const unsigned *_m,int _width,int _logwind);
+
+static unsigned char *qr_binarize_with(const unsigned char *_img,
+ int _width,int _height,int _stride,qr_col_sums_update_func _col_sums_update,
+ qr_threshold_row_func _threshold_row){
   unsigned char *mask = NULL;
   if(_width>0&&_height>0){
     unsigned      *col_sums;
+    unsigned      *row_sums;
     int            logwindw;
     int            logwindh;
     int            windw;
@@ -541,14 +718,15 @@ unsigned char *qr_binarize(const unsigned char *_img,int _width,int _height){
     for(logwindh=4;logwindh<8&&(1<<logwindh)<(_height+7>>3);logwindh++);
     windw=1<<logwindw;
     windh=1<<logwindh;
-    col_sums=(unsigned *)malloc(_width*sizeof(*col_sums));
+    col_sums=(unsigned *)malloc(2*_width*sizeof(*col_sums));
+    row_sums=col_sums+_width;
     /*Initialize sums down each column.*/
     for(x=0;x<_width;x++){
       g=_img[x];
       col_sums[x]=(g<<logwindh-1)+g;
     }
     for(y=1;y<(windh>>1);y++){
-      y1offs=QR_MINI(y,_height-1)*_width;
+      y1offs=QR_MINI(y,_height-1)*_stride;
       for(x=0;x<_width;x++){
         g=_img[y1offs+x];
         col_sums[x]+=g;
@@ -565,10 +743,7 @@ unsigned char *qr_binarize(const unsigned char *_img,int _width,int _height){
         m+=col_sums[x1];
       }
       for(x=0;x<_width;x++){
-        /*Perform the test against the threshold T = (m/n)-D,
-           where n=windw*windh and D=3.*/
-        g=_img[y*_width+x];
-        mask[y*_width+x]=-(g+3<<logwindw+logwindh<m)&0xFF;
+        row_sums[x]=m;
         /*Update the window sum.*/
         if(x+1<_width){
           x0=QR_MAXI(0,x-(windw>>1));
@@ -576,14 +751,13 @@ unsigned char *qr_binarize(const unsigned char *_img,int _width,int _height){
           m+=col_sums[x1]-col_sums[x0];
         }
       }
+      (*_threshold_row)(mask+y*_width,_img+y*_stride,row_sums,_width,
+       logwindw+logwindh);
       /*Update the column sums.*/
       if(y+1<_height){
-        y0offs=QR_MAXI(0,y-(windh>>1))*_width;
-        y1offs=QR_MINI(y+(windh>>1),_height-1)*_width;
-        for(x=0;x<_width;x++){
-          col_sums[x]-=_img[y0offs+x];
-          col_sums[x]+=_img[y1offs+x];
-        }
+        y0offs=QR_MAXI(0,y-(windh>>1))*_stride;
+        y1offs=QR_MINI(y+(windh>>1),_height-1)*_stride;
+        (*_col_sums_update)(col_sums,_img+y0offs,_img+y1offs,_width);
       }
     }
     free(col_sums);
@@ -598,6 +772,17 @@ unsigned char *qr_binarize(const unsigned char *_img,int _width,int _height){
 #endif
   return(mask);
 }
+
+unsigned char *qr_binarize(const unsigned char *_img,int _width,int _height,
+ int _stride){
+#if defined(QR_BINARIZE_SIMD)
+  return qr_binarize_with(_img,_width,_height,_stride,
+   qr_col_sums_update_simd,qr_threshold_row_simd);
+#else
+  return qr_binarize_with(_img,_width,_height,_stride,
+   qr_col_sums_update_c,qr_threshold_row_c);
+#endif
+}
 #endif
 
 #if defined(TEST_BINARIZE)
@@ -626,7 +811,7 @@ int main(int _argc,char **_argv){
     image_read_png(&img,&width,&height,fin);
     fclose(fin);
   }
-  qr_binarize(img,width,height);
+  qr_binarize(img,width,height,width);
   /*{
     FILE *fout;
     fout=fopen("binary.png","wb");
@@ -637,3 +822,78 @@ int main(int _argc,char **_argv){
   return EXIT_SUCCESS;
 }
 #endif
+
+#if defined(TEST_BINARIZE_SIMD)
+#include <stdio.h>
+
+/*Checks that the vectorized kernels produce the same mask as the scalar ones,
+   also when the rows are padded to a wider stride.
+  Build on the host with e.g.
+  cc -DTEST_BINARIZE_SIMD -I.. -o binarize_test binarize.c util.c -lm*/
+int main(void){
+#if defined(QR_BINARIZE_SIMD)
+  static const int sizes[][2]={
+    {1,1},{15,7},{16,16},{17,33},{90,90},{255,129},{640,480},{1920,1080}
+  };
+  unsigned seed;
+  int      failures;
+  int      i;
+  seed=1;
+  failures=0;
+  for(i=0;i<(int)(sizeof(sizes)/sizeof(*sizes));i++){
+    int            width;
+    int            height;
+    int            pattern;
+    width=sizes[i][0];
+    height=sizes[i][1];
+    for(pattern=0;pattern<3;pattern++){
+      unsigned char *img;
+      unsigned char *padded;
+      unsigned char *expected;
+      unsigned char *actual;
+      int            stride;
+      int            j;
+      /*Padding bytes hold garbage that must not leak into the mask.*/
+      stride=width+13;
+      img=(unsigned char *)malloc(width*height);
+      padded=(unsigned char *)malloc(stride*height);
+      for(j=0;j<stride*height;j++){
+        seed=seed*1103515245+12345;
+        padded[j]=(unsigned char)(seed>>16);
+      }
+      for(j=0;j<width*height;j++){
+        seed=seed*1103515245+12345;
+        /*Noise, extreme values and a smooth gradient with little noise.*/
+        if(pattern==0)img[j]=(unsigned char)(seed>>16);
+        else if(pattern==1)img[j]=(seed>>16&1)?255:0;
+        else img[j]=(unsigned char)(j%width*200/width+(seed>>16&7));
+        padded[j/width*stride+j%width]=img[j];
+      }
+      expected=qr_binarize_with(img,width,height,width,
+       qr_col_sums_update_c,qr_threshold_row_c);
+      actual=qr_binarize(img,width,height,width);
+      if(memcmp(expected,actual,width*height)!=0){
+        fprintf(stderr,"mismatch at %dx%d, pattern %d\n",width,height,pattern);
+        failures++;
+      }
+      free(actual);
+      actual=qr_binarize(padded,width,height,stride);
+      if(memcmp(expected,actual,width*height)!=0){
+        fprintf(stderr,"mismatch at %dx%d, stride %d, pattern %d\n",
+         width,height,stride,pattern);
+        failures++;
+      }
+      free(img);
+      free(padded);
+      free(expected);
+      free(actual);
+    }
+  }
+  printf("%s\n",failures?"FAILED":"OK");
+  return failures?EXIT_FAILURE:EXIT_SUCCESS;
+#else
+  printf("no SIMD kernels for this target\n");
+  return EXIT_SUCCESS;
+#endif
+}
+#endif
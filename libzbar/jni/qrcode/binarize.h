@@ -11,7 +11,9 @@ void qr_image_cross_masking_median_filter(unsigned char *_img,
 
 void qr_wiener_filter(unsigned char *_img,int _width,int _height);
 
-/*Binarizes a grayscale image.*/
-unsigned char *qr_binarize(const unsigned char *_img,int _width,int _height);
+/*Binarizes a grayscale image whose rows start _stride bytes apart.
+  The mask is _width bytes per row.*/
+unsigned char *qr_binarize(const unsigned char *_img,int _width,int _height,
+ int _stride);
 
 #endif
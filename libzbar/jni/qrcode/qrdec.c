@@ -68,6 +68,8 @@ struct qr_reader {
     isaac_ctx isaac;
     /* current finder state, horizontal and vertical lines */
     qr_finder_lines finder_lines[2];
+    /* text converters, kept for the lifetime of the reader */
+    qr_text_converters text_cvt;
 };
 
 
@@ -79,6 +81,7 @@ static void qr_reader_init (qr_reader *reader)
       isaac_init(&_reader->isaac,&now,sizeof(now));*/
     isaac_init(&reader->isaac, NULL, 0);
     rs_gf256_init(&reader->gf, QR_PPOLY);
+    qr_text_converters_open(&reader->text_cvt);
 }
 
 /*Allocates a client reader handle.*/
@@ -99,6 +102,7 @@ void _zbar_qr_destroy (qr_reader *reader)
         free(reader->finder_lines[0].lines);
     if(reader->finder_lines[1].lines)
         free(reader->finder_lines[1].lines);
+    qr_text_converters_close(&reader->text_cvt);
     free(reader);
 }
 
@@ -109,6 +113,44 @@ void _zbar_qr_reset (qr_reader *reader)
     reader->finder_lines[1].nlines = 0;
 }
 
+int _zbar_qr_get_finder_lines (const qr_reader *reader,
+                               int direction)
+{
+    return(reader->finder_lines[!!direction].nlines);
+}
+
+int _zbar_qr_get_finder_bbox (const qr_reader *reader,
+                              int bbox[4])
+{
+    int found = 0;
+    int x0 = 0, y0 = 0, x1 = 0, y1 = 0;
+    int dir, i;
+    for(dir = 0; dir < 2; dir++) {
+        const qr_finder_lines *lines = reader->finder_lines + dir;
+        for(i = 0; i < lines->nlines; i++) {
+            const qr_finder_line *l = lines->lines + i;
+            /* a line spans from its begin to its end section along dir */
+            int u0 = l->pos[dir] - l->boffs;
+            int u1 = l->pos[dir] + l->len + l->eoffs;
+            int v = l->pos[!dir];
+            int lx0 = dir ? v : u0, lx1 = dir ? v : u1;
+            int ly0 = dir ? u0 : v, ly1 = dir ? u1 : v;
+            if(!found || lx0 < x0) x0 = lx0;
+            if(!found || ly0 < y0) y0 = ly0;
+            if(!found || lx1 > x1) x1 = lx1;
+            if(!found || ly1 > y1) y1 = ly1;
+            found = 1;
+        }
+    }
+    if(found) {
+        bbox[0] = x0 >> QR_FINDER_SUBPREC;
+        bbox[1] = y0 >> QR_FINDER_SUBPREC;
+        bbox[2] = (x1 >> QR_FINDER_SUBPREC) + 1;
+        bbox[3] = (y1 >> QR_FINDER_SUBPREC) + 1;
+    }
+    return(found);
+}
+
 
 /*A cluster of lines crossing a finder pattern (all in the same direction).*/
 struct qr_finder_cluster{
@@ -4021,16 +4063,23 @@ int _zbar_qr_decode (qr_reader *reader,
     qr_svg_centers(centers, ncenters);
 
     if(ncenters >= 3) {
-        void *bin = qr_binarize(img->data, img->width, img->height);
+        /* finder centers are in image coordinates, so the mask keeps the
+         * image origin, but pixels right of and below the crop are never
+         * scanned and are left out of the binarization
+         */
+        int width = img->crop_x + img->crop_w;
+        int height = img->crop_y + img->crop_h;
+        void *bin = qr_binarize(img->data, width, height, img->width);
 
         qr_code_data_list qrlist;
         qr_code_data_list_init(&qrlist);
 
         qr_reader_match_centers(reader, &qrlist, centers, ncenters,
-                                bin, img->width, img->height);
+                                bin, width, height);
 
         if(qrlist.nqrdata > 0)
-            nqrdata = qr_code_data_list_extract_text(&qrlist, iscn, img);
+            nqrdata = qr_code_data_list_extract_text(&qrlist, &reader->text_cvt,
+                                                     iscn, img);
 
         qr_code_data_list_clear(&qrlist);
         free(bin);
@@ -7,10 +7,12 @@
 # define _qrdec_H (1)
 
 #include <zbar.h>
+#include <iconv.h>
 
 typedef struct qr_code_data_entry qr_code_data_entry;
 typedef struct qr_code_data       qr_code_data;
 typedef struct qr_code_data_list  qr_code_data_list;
+typedef struct qr_text_converters qr_text_converters;
 
 typedef enum qr_mode{
   /*Numeric digits ('0'...'9').*/
@@ -151,6 +153,23 @@ struct qr_code_data_list{
 };
 
 
+/*Converters to UTF-8 from the encodings tried when a code does not specify
+   one.
+  They are opened once per reader instead of once per decoded code.
+  All of them convert from stateless encodings, so they need no reset
+   between uses, even after a failed conversion.*/
+struct qr_text_converters{
+  /*This is the encoding the standard says is the default.*/
+  iconv_t latin1_cd;
+  /*But this one is often used, as well.*/
+  iconv_t sjis_cd;
+  /*This is a trivial conversion just to check validity without extra code.*/
+  iconv_t utf8_cd;
+};
+
+void qr_text_converters_open(qr_text_converters *_cvt);
+void qr_text_converters_close(qr_text_converters *_cvt);
+
 /*Extract symbol data from a list of QR codes and attach to the image.
   All text is converted to UTF-8.
   Any structured-append group that does not have all of its members is decoded
@@ -161,6 +180,7 @@ struct qr_code_data_list{
   Return: The number of symbols which were successfully extracted from the
    codes; this will be at most the number of codes.*/
 int qr_code_data_list_extract_text(const qr_code_data_list *_qrlist,
+                                   const qr_text_converters *_cvt,
                                    zbar_image_scanner_t *iscn,
                                    zbar_image_t *img);
 
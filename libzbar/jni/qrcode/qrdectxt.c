@@ -32,6 +32,45 @@ static int text_is_latin1(const unsigned char *_text,int _len){
   return 1;
 }
 
+/*Checks for well-formed UTF-8: no overlong forms, surrogates or code points
+   above U+10FFFF.*/
+static int text_is_utf8(const unsigned char *_text,int _len){
+  int i;
+  i=0;
+  while(i<_len){
+    unsigned c;
+    int      n;
+    int      j;
+    c=_text[i++];
+    if(c<0x80)continue;
+    else if(c>=0xC2&&c<0xE0)n=1;
+    else if(c>=0xE0&&c<0xF0)n=2;
+    else if(c>=0xF0&&c<0xF5)n=3;
+    else return 0;
+    if(_len-i<n)return 0;
+    /*Second byte ranges that rule out overlong forms and surrogates.*/
+    if((c==0xE0&&_text[i]<0xA0)||(c==0xED&&_text[i]>=0xA0)||
+     (c==0xF0&&_text[i]<0x90)||(c==0xF4&&_text[i]>=0x90)){
+      return 0;
+    }
+    for(j=0;j<n;j++)if((_text[i+j]&0xC0)!=0x80)return 0;
+    i+=n;
+  }
+  return 1;
+}
+
+void qr_text_converters_open(qr_text_converters *_cvt){
+  _cvt->latin1_cd=iconv_open("UTF-8","ISO8859-1");
+  _cvt->sjis_cd=iconv_open("UTF-8","SJIS");
+  _cvt->utf8_cd=iconv_open("UTF-8","UTF-8");
+}
+
+void qr_text_converters_close(qr_text_converters *_cvt){
+  if(_cvt->utf8_cd!=(iconv_t)-1)iconv_close(_cvt->utf8_cd);
+  if(_cvt->sjis_cd!=(iconv_t)-1)iconv_close(_cvt->sjis_cd);
+  if(_cvt->latin1_cd!=(iconv_t)-1)iconv_close(_cvt->latin1_cd);
+}
+
 static void enc_list_mtf(iconv_t _enc_list[3],iconv_t _enc){
   int i;
   for(i=0;i<3;i++)if(_enc_list[i]==_enc){
@@ -42,7 +81,11 @@ static void enc_list_mtf(iconv_t _enc_list[3],iconv_t _enc){
   }
 }
 
+/*Codes decoded from one image rarely exceed this, more get a heap buffer.*/
+#define QR_MARK_STACK_SIZE (16)
+
 int qr_code_data_list_extract_text(const qr_code_data_list *_qrlist,
+                                   const qr_text_converters *_cvt,
                                    zbar_image_scanner_t *iscn,
                                    zbar_image_t *img)
 {
@@ -51,19 +94,21 @@ int qr_code_data_list_extract_text(const qr_code_data_list *_qrlist,
   iconv_t              latin1_cd;
   const qr_code_data  *qrdata;
   int                  nqrdata;
+  unsigned char        mark_buf[QR_MARK_STACK_SIZE];
   unsigned char       *mark;
   int                  ntext;
   int                  i;
   qrdata=_qrlist->qrdata;
   nqrdata=_qrlist->nqrdata;
-  mark=(unsigned char *)calloc(nqrdata,sizeof(*mark));
+  if(nqrdata<=QR_MARK_STACK_SIZE){
+    mark=mark_buf;
+    memset(mark,0,nqrdata*sizeof(*mark));
+  }
+  else mark=(unsigned char *)calloc(nqrdata,sizeof(*mark));
   ntext=0;
-  /*This is the encoding the standard says is the default.*/
-  latin1_cd=iconv_open("UTF-8","ISO8859-1");
-  /*But this one is often used, as well.*/
-  sjis_cd=iconv_open("UTF-8","SJIS");
-  /*This is a trivial conversion just to check validity without extra code.*/
-  utf8_cd=iconv_open("UTF-8","UTF-8");
+  latin1_cd=_cvt->latin1_cd;
+  sjis_cd=_cvt->sjis_cd;
+  utf8_cd=_cvt->utf8_cd;
   for(i=0;i<nqrdata;i++)if(!mark[i]){
     const qr_code_data       *qrdataj;
     const qr_code_data_entry *entry;
@@ -260,6 +305,23 @@ int qr_code_data_list_extract_text(const qr_code_data_list *_qrlist,
             inleft=entry->payload.data.len;
             out=sa_text+sa_ntext;
             outleft=sa_ctext-sa_ntext;
+            /*ASCII and well-formed UTF-8 (nearly all URLs) are copied as
+               is, converting them from UTF-8 would give the same result.
+              A UTF-8 BOM is dropped, like the conversion below does.
+              Kanji mode data and other specified encodings still go
+               through iconv.*/
+            if(!has_kanji&&(eci<0||eci==QR_ECI_UTF8)){
+              size_t bom;
+              bom=eci<0&&inleft>=3&&
+               in[0]==(char)0xEF&&in[1]==(char)0xBB&&in[2]==(char)0xBF?3:0;
+              if(outleft>=inleft-bom&&
+               text_is_utf8((unsigned char *)in+bom,inleft-bom)){
+                memcpy(out,in+bom,(inleft-bom)*sizeof(*out));
+                sa_ntext+=inleft-bom;
+                if(eci<0)enc_list_mtf(enc_list,utf8_cd);
+                break;
+              }
+            }
             /*If we have no specified encoding, attempt to auto-detect it.*/
             if(eci<0){
               int ei;
@@ -424,9 +486,6 @@ int qr_code_data_list_extract_text(const qr_code_data_list *_qrlist,
         free(sa_text);
     }
   }
-  if(utf8_cd!=(iconv_t)-1)iconv_close(utf8_cd);
-  if(sjis_cd!=(iconv_t)-1)iconv_close(sjis_cd);
-  if(latin1_cd!=(iconv_t)-1)iconv_close(latin1_cd);
-  free(mark);
+  if(mark!=mark_buf)free(mark);
   return ntext;
 }
@@ -9,11 +9,155 @@ extern "C" {
 #endif
 /*
  * Class:     trikita_obsqr_QrDecoder
- * Method:    decode
- * Signature: (II[B)Ljava/lang/String;
+ * Method:    nativeInit
+ * Signature: ()J
  */
-JNIEXPORT jstring JNICALL Java_trikita_obsqr_QrDecoder_decode
-  (JNIEnv *, jobject, jint, jint, jbyteArray);
+JNIEXPORT jlong JNICALL Java_trikita_obsqr_QrDecoder_nativeInit
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeDestroy
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeDestroy
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeSetSymbologies
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeSetSymbologies
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeSetPyramidScale
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeSetPyramidScale
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeSetDensity
+ * Signature: (JII)V
+ */
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeSetDensity
+  (JNIEnv *, jclass, jlong, jint, jint);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeGetDensity
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeGetDensity
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeGetScanTime
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_trikita_obsqr_QrDecoder_nativeGetScanTime
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeDecode
+ * Signature: (J[BIIIII)I
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecode
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jint);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeDecodeBuffer
+ * Signature: (JLjava/nio/ByteBuffer;IIIII)I
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecodeBuffer
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jint, jint, jint);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeDecodeBitmap
+ * Signature: (JLandroid/graphics/Bitmap;IIII)I
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecodeBitmap
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jint, jint);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeTrack
+ * Signature: (J[BIIIII)I
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeTrack
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jint);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeTrackBuffer
+ * Signature: (JLjava/nio/ByteBuffer;IIIII)I
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeTrackBuffer
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jint, jint, jint);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeGetText
+ * Signature: (J)Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_trikita_obsqr_QrDecoder_nativeGetText
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeGetPayload
+ * Signature: (JLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeGetPayload
+  (JNIEnv *, jclass, jlong, jobject);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeCopyTrack
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeCopyTrack
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeGetFinderBounds
+ * Signature: (J[I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_trikita_obsqr_QrDecoder_nativeGetFinderBounds
+  (JNIEnv *, jclass, jlong, jintArray);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeDecodeAll
+ * Signature: (J[BIIIII[I)I
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecodeAll
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint, jint, jint, jint, jintArray);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeDecodeAllBuffer
+ * Signature: (JLjava/nio/ByteBuffer;IIIII[I)I
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecodeAllBuffer
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jint, jint, jint, jintArray);
+
+/*
+ * Class:     trikita_obsqr_QrDecoder
+ * Method:    nativeGetResults
+ * Signature: (J[B[I[I[I[I[II)V
+ */
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeGetResults
+  (JNIEnv *, jclass, jlong, jbyteArray, jintArray, jintArray, jintArray, jintArray, jintArray, jint);
 
 #ifdef __cplusplus
 }
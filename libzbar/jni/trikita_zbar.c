@@ -1,59 +1,821 @@
+#include <stdint.h>
 #include <string.h>
 #include <stdlib.h>
+#include <time.h>
 #include <android/log.h>
+#include <android/bitmap.h>
 
 #include "zbar.h"
 
 #include "trikita_obsqr_QrDecoder.h"
 
-JNIEXPORT jstring JNICALL Java_trikita_obsqr_QrDecoder_decode
-	(JNIEnv *env, jobject obj, jint w, jint h, jbyteArray img) {
-
+/* Long-lived decoder state, owned by the Java QrDecoder object. Keeping the
+ * scanner between frames preserves its QR reader, decoder and recycled
+ * symbol pools instead of rebuilding them for every frame.
+ */
+typedef struct trikita_decoder_s {
 	zbar_image_scanner_t *scanner;
-	zbar_image_t *zimage;
-	zbar_image_t *zgrayimage;
+	zbar_image_t *image;
+	/* downscaled luma for the first detection pass, 1 = disabled */
+	int pyramid_scale;
+	zbar_image_t *small;
+	uint8_t *small_data;
+	unsigned long small_size;
+	/* luma converted from locked bitmap pixels */
+	uint8_t *luma_data;
+	unsigned long luma_size;
+	/* scan every n-th line, adapted between min and max density */
+	int density;
+	int min_density;
+	int max_density;
+	int decoded_streak;
+	/* image holding symbols of the last scan and the mapping of their
+	 * locations into frame coordinates: frame = loc * scale + offset */
+	zbar_image_t *result;
+	int loc_scale;
+	int loc_x;
+	int loc_y;
+	/* bounding box of the last decoded symbol in frame coordinates */
+	int track_valid;
+	int track[4];
+	/* duration of the last scan_region() or track_region(), in ns */
+	int64_t scan_time;
+} trikita_decoder_t;
 
-	jbyte *pixbuf;
-	jstring s = NULL;
+/* Symbology bits, must match QrDecoder.SYMBOLOGY_* constants */
+#define SYMBOLOGY_QR       (1 << 0)
+#define SYMBOLOGY_EAN      (1 << 1)
+#define SYMBOLOGY_CODE128  (1 << 2)
+#define SYMBOLOGY_CODE39   (1 << 3)
+#define SYMBOLOGY_CODE93   (1 << 4)
+#define SYMBOLOGY_CODABAR  (1 << 5)
+#define SYMBOLOGY_I25      (1 << 6)
+#define SYMBOLOGY_DATABAR  (1 << 7)
 
-	zbar_set_verbosity(10); // XXX
-	
-	pixbuf = (*env)->GetByteArrayElements(env, img, 0);
+static const struct {
+	int mask;
+	zbar_symbol_type_t type;
+} symbologies[] = {
+	{ SYMBOLOGY_QR, ZBAR_QRCODE },
+	{ SYMBOLOGY_EAN, ZBAR_EAN13 },
+	{ SYMBOLOGY_EAN, ZBAR_EAN8 },
+	{ SYMBOLOGY_EAN, ZBAR_UPCA },
+	{ SYMBOLOGY_EAN, ZBAR_UPCE },
+	{ SYMBOLOGY_EAN, ZBAR_ISBN10 },
+	{ SYMBOLOGY_EAN, ZBAR_ISBN13 },
+	{ SYMBOLOGY_CODE128, ZBAR_CODE128 },
+	{ SYMBOLOGY_CODE39, ZBAR_CODE39 },
+	{ SYMBOLOGY_CODE93, ZBAR_CODE93 },
+	{ SYMBOLOGY_CODABAR, ZBAR_CODABAR },
+	{ SYMBOLOGY_I25, ZBAR_I25 },
+	{ SYMBOLOGY_DATABAR, ZBAR_DATABAR },
+	{ SYMBOLOGY_DATABAR, ZBAR_DATABAR_EXP },
+};
+
+/* Disabled decoders are skipped for every edge in zbar_decode_width(), so
+ * keeping only the needed ones enabled saves time on each scan line */
+static void set_symbologies(trikita_decoder_t *dec, int mask) {
+	unsigned i;
+	zbar_image_scanner_set_config(dec->scanner, 0, ZBAR_CFG_ENABLE, 0);
+	for (i = 0; i < sizeof(symbologies) / sizeof(symbologies[0]); i++) {
+		if (mask & symbologies[i].mask) {
+			zbar_image_scanner_set_config(dec->scanner, symbologies[i].type,
+					ZBAR_CFG_ENABLE, 1);
+		}
+	}
+}
+
+static int symbology_mask(zbar_symbol_type_t type) {
+	unsigned i;
+	for (i = 0; i < sizeof(symbologies) / sizeof(symbologies[0]); i++) {
+		if (symbologies[i].type == type) {
+			return symbologies[i].mask;
+		}
+	}
+	return 0;
+}
+
+static void set_density(trikita_decoder_t *dec, int density) {
+	dec->density = density;
+	zbar_image_scanner_set_config(dec->scanner, 0, ZBAR_CFG_X_DENSITY, density);
+	zbar_image_scanner_set_config(dec->scanner, 0, ZBAR_CFG_Y_DENSITY, density);
+}
+
+/* Scanning starts sparse. Finder patterns seen without a decoded symbol
+ * mean that a code is likely in view, so the scan gets denser. Empty
+ * frames relax it back towards the sparsest density, so do successful
+ * decodes, but only after a streak of them to avoid flipping between a
+ * density that works and one that doesn't on every other frame.
+ */
+#define RELAX_AFTER_DECODES 8
+
+static void adapt_density(trikita_decoder_t *dec, int decoded) {
+	if (dec->min_density == dec->max_density) {
+		return;
+	}
+	if (decoded) {
+		if (++dec->decoded_streak < RELAX_AFTER_DECODES) {
+			return;
+		}
+	} else if (zbar_image_scanner_get_qr_finder_lines(dec->scanner, 0) > 0 &&
+			zbar_image_scanner_get_qr_finder_lines(dec->scanner, 1) > 0) {
+		dec->decoded_streak = 0;
+		if (dec->density > dec->min_density) {
+			set_density(dec, dec->density - 1);
+		}
+		return;
+	}
+	dec->decoded_streak = 0;
+	if (dec->density < dec->max_density) {
+		set_density(dec, dec->density + 1);
+	}
+}
+
+/* zbar only needs luminance, which is the leading plane of the NV21 frame
+ * (or the Y plane of a YUV_420_888 image), so it is scanned in place as
+ * Y800 without a copy. Rows longer than the frame width are handled by
+ * giving zbar an image as wide as the row stride and cropping it to the
+ * frame width, which also bounds the QR binarization. Pixel memory belongs to the JVM, so the image never gets a
+ * cleanup handler and the pointer is dropped as soon as the scan is over.
+ */
+static const zbar_symbol_t *scan_plane(trikita_decoder_t *dec,
+		zbar_image_t *img, const void *luma, int w, int h, int stride) {
+	const zbar_symbol_t *sym = NULL;
+
+	zbar_image_set_size(img, stride, h);
+	zbar_image_set_crop(img, 0, 0, w, h);
+	zbar_image_set_data(img, luma, (unsigned long) stride * h, NULL);
+	if (zbar_scan_image(dec->scanner, img) > 0) {
+		sym = zbar_image_first_symbol(img);
+	}
+	zbar_image_set_data(img, NULL, 0, NULL);
+	dec->result = img;
+	dec->loc_scale = 1;
+	dec->loc_x = dec->loc_y = 0;
+	return sym;
+}
+
+/* Averages each scale x scale block of luma into one pixel */
+static void box_filter(uint8_t *dst, const uint8_t *src, int w, int h,
+		int stride, int scale) {
+	int sw = w / scale, sh = h / scale;
+	int shift = (scale == 4 ? 4 : 2);
+	int x, y, i, j;
+	for (y = 0; y < sh; y++) {
+		const uint8_t *row = src + (unsigned long) y * scale * stride;
+		for (x = 0; x < sw; x++) {
+			const uint8_t *p = row + x * scale;
+			unsigned sum = 0;
+			for (j = 0; j < scale; j++, p += stride) {
+				for (i = 0; i < scale; i++) {
+					sum += p[i];
+				}
+			}
+			*dst++ = (sum + (1 << (shift - 1))) >> shift;
+		}
+	}
+}
+
+/* Smallest downscaled image worth scanning, below that finder patterns of
+ * a code filling the frame would be just a few pixels wide */
+#define PYRAMID_MIN_SIZE 160
+
+/* First pass scans a downscaled copy of the frame. A code decoded there is
+ * returned right away. If only QR finder lines are seen, the full
+ * resolution frame is scanned around them, expanded by half of their
+ * extent in each direction to cover the rest of the code. Frames without
+ * any finder lines are not scanned at full resolution at all.
+ */
+static const zbar_symbol_t *scan_pyramid(trikita_decoder_t *dec,
+		const uint8_t *luma, unsigned long len, int w, int h, int stride) {
+	const zbar_symbol_t *sym;
+	int scale = dec->pyramid_scale;
+	int sw = w / scale, sh = h / scale;
+	int bbox[4], mx, my, x0, y0, x1, y1;
+	unsigned long size = (unsigned long) sw * sh;
+	unsigned long offset;
+
+	if (size > dec->small_size) {
+		uint8_t *data = realloc(dec->small_data, size);
+		if (data == NULL) {
+			return scan_plane(dec, dec->image, luma, w, h, stride);
+		}
+		dec->small_data = data;
+		dec->small_size = size;
+	}
+	box_filter(dec->small_data, luma, w, h, stride, scale);
 
-	zimage = zbar_image_create();
-	if (zimage == NULL) {
-		(*env)->ReleaseByteArrayElements(env, img, pixbuf, 0);
+	sym = scan_plane(dec, dec->small, dec->small_data, sw, sh, sw);
+	dec->loc_scale = scale;
+	if (sym != NULL ||
+			!zbar_image_scanner_get_qr_finder_bbox(dec->scanner, bbox)) {
+		return sym;
+	}
+
+	mx = (bbox[2] - bbox[0]) / 2;
+	my = (bbox[3] - bbox[1]) / 2;
+	x0 = (bbox[0] - mx) * scale;
+	y0 = (bbox[1] - my) * scale;
+	x1 = (bbox[2] + mx) * scale;
+	y1 = (bbox[3] + my) * scale;
+	if (x0 < 0) x0 = 0;
+	if (y0 < 0) y0 = 0;
+	if (x1 > w) x1 = w;
+	if (y1 > h) y1 = h;
+	if (x1 <= x0 || y1 <= y0) {
 		return NULL;
 	}
-	zbar_image_set_format(zimage, *(unsigned long *) "Y800");
-	zbar_image_set_size(zimage, w, h);
-	zbar_image_set_data(zimage, pixbuf, (*env)->GetArrayLength(env, img), 
-			zbar_image_free_data);
+	/* whole rows are read from the region start, see track_region() */
+	offset = (unsigned long) y0 * stride + x0;
+	if ((unsigned long) (y1 - y0) > (len - offset) / stride) {
+		y1 = y0 + (len - offset) / stride;
+		if (y1 <= y0) {
+			return NULL;
+		}
+	}
+	sym = scan_plane(dec, dec->image, luma + offset, x1 - x0, y1 - y0, stride);
+	dec->loc_x = x0;
+	dec->loc_y = y0;
+	return sym;
+}
+
+static const zbar_symbol_t *scan_luma(trikita_decoder_t *dec,
+		const void *luma, unsigned long len, int w, int h, int stride) {
+	const zbar_symbol_t *sym;
 
-	zgrayimage = zbar_image_convert(zimage, *(unsigned long *) "Y800");
-	if (zgrayimage == NULL) {
-		(*env)->ReleaseByteArrayElements(env, img, pixbuf, 0);
+	dec->result = NULL;
+	/* last row of a strided plane may be shorter than the stride */
+	if ((unsigned long) stride * h > len) {
+		h = len / stride;
+	}
+	if (w <= 0 || h <= 0) {
 		return NULL;
 	}
 
-	zbar_image_destroy(zimage);
+	if (dec->pyramid_scale > 1 &&
+			w / dec->pyramid_scale >= PYRAMID_MIN_SIZE &&
+			h / dec->pyramid_scale >= PYRAMID_MIN_SIZE) {
+		sym = scan_pyramid(dec, luma, len, w, h, stride);
+	} else {
+		sym = scan_plane(dec, dec->image, luma, w, h, stride);
+	}
+	adapt_density(dec, sym != NULL);
+	return sym;
+}
+
+static int64_t now_ns(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+/* Remembers where the symbol is, so that the next frame can be checked
+ * around it with track_region() instead of a full scan */
+static void update_track(trikita_decoder_t *dec, const zbar_symbol_t *sym) {
+	unsigned i, n;
+	int x, y;
+
+	dec->track_valid = 0;
+	if (sym == NULL || dec->result == NULL ||
+			(n = zbar_symbol_get_loc_size(sym)) == 0) {
+		return;
+	}
+	for (i = 0; i < n; i++) {
+		x = zbar_symbol_get_loc_x(sym, i) * dec->loc_scale + dec->loc_x;
+		y = zbar_symbol_get_loc_y(sym, i) * dec->loc_scale + dec->loc_y;
+		if (i == 0 || x < dec->track[0]) dec->track[0] = x;
+		if (i == 0 || y < dec->track[1]) dec->track[1] = y;
+		if (i == 0 || x > dec->track[2]) dec->track[2] = x;
+		if (i == 0 || y > dec->track[3]) dec->track[3] = y;
+	}
+	dec->track_valid = 1;
+}
+
+/* Region of interest is cropped by pointer offset, rows keep the stride of
+ * the full frame, so nothing outside of the region is ever touched by the
+ * line scanner. */
+static const zbar_symbol_t *scan_region(trikita_decoder_t *dec,
+		const uint8_t *luma, unsigned long len, int stride,
+		int x, int y, int w, int h) {
+	const zbar_symbol_t *sym;
+	unsigned long offset = (unsigned long) y * stride + x;
+	int64_t start = now_ns();
+	if (offset >= len) {
+		dec->result = NULL;
+		dec->scan_time = 0;
+		return NULL;
+	}
+	sym = scan_luma(dec, luma + offset, len - offset, w, h, stride);
+	dec->loc_x += x;
+	dec->loc_y += y;
+	update_track(dec, sym);
+	dec->scan_time = now_ns() - start;
+	return sym;
+}
 
-	scanner = zbar_image_scanner_create();
-	zbar_image_scanner_set_config(scanner, 0, ZBAR_CFG_ENABLE, 1);
-	zbar_scan_image(scanner, zgrayimage);
+/* Tracked symbol may move by this fraction of its size between frames */
+#define TRACK_MARGIN 2
 
+/* Verifies that the tracked symbol is still in view by scanning only the
+ * window around its last location, at full resolution, without touching
+ * the scan density. A code held in front of the camera costs a fraction
+ * of a full scan then. Once it's lost, the track is dropped and the caller
+ * is expected to do a full scan. */
+static const zbar_symbol_t *track_region(trikita_decoder_t *dec,
+		const uint8_t *luma, unsigned long len, int stride,
+		int x, int y, int w, int h) {
 	const zbar_symbol_t *sym;
+	int mx, my, x0, y0, x1, y1;
+	unsigned long offset;
+	int64_t start = now_ns();
+
+	dec->result = NULL;
+	dec->scan_time = 0;
+	if (!dec->track_valid) {
+		return NULL;
+	}
+	dec->track_valid = 0;
+	mx = (dec->track[2] - dec->track[0]) / TRACK_MARGIN;
+	my = (dec->track[3] - dec->track[1]) / TRACK_MARGIN;
+	x0 = dec->track[0] - mx;
+	y0 = dec->track[1] - my;
+	x1 = dec->track[2] + mx;
+	y1 = dec->track[3] + my;
+	if (x0 < x) x0 = x;
+	if (y0 < y) y0 = y;
+	if (x1 > x + w) x1 = x + w;
+	if (y1 > y + h) y1 = y + h;
+	if (x1 <= x0 || y1 <= y0) {
+		return NULL;
+	}
+	/* zbar reads whole stride wide rows from the window start, so the
+	 * window ends x0 bytes past its last row, like in scan_region() */
+	offset = (unsigned long) y0 * stride + x0;
+	if (offset >= len) {
+		return NULL;
+	}
+	if ((unsigned long) (y1 - y0) > (len - offset) / stride) {
+		y1 = y0 + (len - offset) / stride;
+		if (y1 <= y0) {
+			return NULL;
+		}
+	}
+	sym = scan_plane(dec, dec->image, luma + offset, x1 - x0, y1 - y0, stride);
+	dec->loc_x = x0;
+	dec->loc_y = y0;
+	update_track(dec, sym);
+	dec->scan_time = now_ns() - start;
+	return sym;
+}
+
+/* Bitmap luma uses the RGB to Y coefficients of convert.c. Bitmap pixels
+ * are premultiplied, so adding 255 - alpha blends them over white and the
+ * transparent margin around a code doesn't turn black. Plain loops over
+ * bytes, the compiler vectorizes them. */
+static void rgba_to_luma(uint8_t *dst, const uint8_t *src, int w, int h,
+		int stride) {
+	int i, j;
+	for (j = 0; j < h; j++, src += stride, dst += w) {
+		const uint8_t *p = src;
+		for (i = 0; i < w; i++, p += 4) {
+			dst[i] = ((77 * p[0] + 150 * p[1] + 29 * p[2] + 0x80) >> 8) +
+				255 - p[3];
+		}
+	}
+}
+
+static void rgb565_to_luma(uint8_t *dst, const uint8_t *src, int w, int h,
+		int stride) {
+	int i, j, r, g, b;
+	for (j = 0; j < h; j++, src += stride, dst += w) {
+		const uint16_t *p = (const uint16_t *) src;
+		for (i = 0; i < w; i++) {
+			r = (p[i] >> 11) & 0x1f;
+			g = (p[i] >> 5) & 0x3f;
+			b = p[i] & 0x1f;
+			r = (r << 3) | (r >> 2);
+			g = (g << 2) | (g >> 4);
+			b = (b << 3) | (b >> 2);
+			dst[i] = (77 * r + 150 * g + 29 * b + 0x80) >> 8;
+		}
+	}
+}
+
+/* Converts a region of locked bitmap pixels into the reusable luma buffer.
+ * Returns the luma size, or 0 for unsupported formats and bad regions. */
+static unsigned long convert_pixels(trikita_decoder_t *dec,
+		const AndroidBitmapInfo *info, const uint8_t *pixels,
+		int x, int y, int w, int h) {
+	unsigned long size = (unsigned long) w * h;
+	int bpp;
+
+	if (info->format == ANDROID_BITMAP_FORMAT_RGBA_8888) {
+		bpp = 4;
+	} else if (info->format == ANDROID_BITMAP_FORMAT_RGB_565) {
+		bpp = 2;
+	} else {
+		return 0;
+	}
+	if (x < 0 || y < 0 || w <= 0 || h <= 0 ||
+			x + w > (int) info->width || y + h > (int) info->height) {
+		return 0;
+	}
+	if (size > dec->luma_size) {
+		uint8_t *data = realloc(dec->luma_data, size);
+		if (data == NULL) {
+			return 0;
+		}
+		dec->luma_data = data;
+		dec->luma_size = size;
+	}
+	pixels += (unsigned long) y * info->stride + x * bpp;
+	if (bpp == 4) {
+		rgba_to_luma(dec->luma_data, pixels, w, h, info->stride);
+	} else {
+		rgb565_to_luma(dec->luma_data, pixels, w, h, info->stride);
+	}
+	return size;
+}
 
-	sym = zbar_image_first_symbol(zgrayimage);
-	if (sym != NULL) {
-		const char *sym_data = zbar_symbol_get_data(sym);
-		s = (*env)->NewStringUTF(env, sym_data);
+/* Counts symbols of the last scan, their total payload size and number of
+ * location points, so that the Java side can make room for all of them */
+static jint count_symbols(JNIEnv *env, const zbar_symbol_t *sym,
+		jintArray totals) {
+	jint n = 0, t[2] = { 0, 0 };
+	for (; sym != NULL; sym = zbar_symbol_next(sym)) {
+		n++;
+		t[0] += zbar_symbol_get_data_length(sym);
+		t[1] += zbar_symbol_get_loc_size(sym);
 	}
+	(*env)->SetIntArrayRegion(env, totals, 0, 2, t);
+	return n;
+}
+
+static jint symbol_length(const zbar_symbol_t *sym) {
+	return sym == NULL ? -1 : (jint) zbar_symbol_get_data_length(sym);
+}
+
+/* First symbol of the last scan */
+static const zbar_symbol_t *first_symbol(trikita_decoder_t *dec) {
+	return dec->result == NULL ? NULL : zbar_image_first_symbol(dec->result);
+}
+
+/* Layout of the QrPayload buffer: payload length, symbology and quality as
+ * native order ints, followed by the payload bytes */
+#define PAYLOAD_HEADER 12
 
-	zbar_image_scanner_destroy(scanner);
+/* Stores all symbols of the last scan into QrResults arrays, starting at
+ * symbol `index`. Arrays must have room for them, see count_symbols() */
+static void store_symbols(JNIEnv *env, trikita_decoder_t *dec,
+		jbyteArray data, jintArray data_start, jintArray types,
+		jintArray qualities, jintArray points, jintArray point_start,
+		jint index) {
+	const zbar_symbol_t *sym;
+	jint data_off, point_off;
+
+	if (dec->result == NULL) {
+		return;
+	}
+	(*env)->GetIntArrayRegion(env, data_start, index, 1, &data_off);
+	(*env)->GetIntArrayRegion(env, point_start, index, 1, &point_off);
+	for (sym = zbar_image_first_symbol(dec->result); sym != NULL;
+			sym = zbar_symbol_next(sym), index++) {
+		jint type = symbology_mask(zbar_symbol_get_type(sym));
+		jint quality = zbar_symbol_get_quality(sym);
+		jint len = zbar_symbol_get_data_length(sym);
+		unsigned i, n = zbar_symbol_get_loc_size(sym);
 
-	(*env)->ReleaseByteArrayElements(env, img, pixbuf, 0);
+		(*env)->SetIntArrayRegion(env, types, index, 1, &type);
+		(*env)->SetIntArrayRegion(env, qualities, index, 1, &quality);
+		(*env)->SetByteArrayRegion(env, data, data_off, len,
+				(const jbyte *) zbar_symbol_get_data(sym));
+		data_off += len;
+		(*env)->SetIntArrayRegion(env, data_start, index + 1, 1, &data_off);
 
-	return s;
+		for (i = 0; i < n; i++, point_off++) {
+			jint xy[2];
+			xy[0] = zbar_symbol_get_loc_x(sym, i) * dec->loc_scale +
+				(dec->loc_scale >> 1) + dec->loc_x;
+			xy[1] = zbar_symbol_get_loc_y(sym, i) * dec->loc_scale +
+				(dec->loc_scale >> 1) + dec->loc_y;
+			(*env)->SetIntArrayRegion(env, points, 2 * point_off, 2, xy);
+		}
+		(*env)->SetIntArrayRegion(env, point_start, index + 1, 1, &point_off);
+	}
 }
 
+JNIEXPORT jlong JNICALL Java_trikita_obsqr_QrDecoder_nativeInit
+	(JNIEnv *env, jclass cls) {
+
+	trikita_decoder_t *dec;
+
+	zbar_set_verbosity(10); // XXX
+
+	dec = calloc(1, sizeof(trikita_decoder_t));
+	if (dec == NULL) {
+		return 0;
+	}
+	dec->scanner = zbar_image_scanner_create();
+	dec->image = zbar_image_create();
+	dec->small = zbar_image_create();
+	if (dec->scanner == NULL || dec->image == NULL || dec->small == NULL) {
+		if (dec->scanner != NULL) {
+			zbar_image_scanner_destroy(dec->scanner);
+		}
+		if (dec->image != NULL) {
+			zbar_image_destroy(dec->image);
+		}
+		if (dec->small != NULL) {
+			zbar_image_destroy(dec->small);
+		}
+		free(dec);
+		return 0;
+	}
+	zbar_image_set_format(dec->image, zbar_fourcc('Y', '8', '0', '0'));
+	zbar_image_set_format(dec->small, zbar_fourcc('Y', '8', '0', '0'));
+	dec->pyramid_scale = 1;
+	set_symbologies(dec, SYMBOLOGY_QR);
+	dec->min_density = dec->max_density = 1;
+	set_density(dec, 1);
+	return (jlong) (intptr_t) dec;
+}
+
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeSetSymbologies
+	(JNIEnv *env, jclass cls, jlong handle, jint mask) {
+
+	set_symbologies((trikita_decoder_t *) (intptr_t) handle, mask);
+}
+
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeSetPyramidScale
+	(JNIEnv *env, jclass cls, jlong handle, jint scale) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	dec->pyramid_scale = scale;
+}
+
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeSetDensity
+	(JNIEnv *env, jclass cls, jlong handle, jint min, jint max) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	dec->min_density = min;
+	dec->max_density = max;
+	dec->decoded_streak = 0;
+	set_density(dec, max);
+}
+
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeGetDensity
+	(JNIEnv *env, jclass cls, jlong handle) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	return dec->density;
+}
+
+JNIEXPORT jlong JNICALL Java_trikita_obsqr_QrDecoder_nativeGetScanTime
+	(JNIEnv *env, jclass cls, jlong handle) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	return dec->scan_time;
+}
+
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeDestroy
+	(JNIEnv *env, jclass cls, jlong handle) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	if (dec == NULL) {
+		return;
+	}
+	zbar_image_destroy(dec->image);
+	zbar_image_destroy(dec->small);
+	zbar_image_scanner_destroy(dec->scanner);
+	free(dec->small_data);
+	free(dec->luma_data);
+	free(dec);
+}
+
+/* Arrays are accessed as critical regions to avoid the copy that
+ * Get<Type>ArrayElements may make, and released with JNI_ABORT since
+ * zbar never writes to the pixels. No JNI calls are allowed until the
+ * array is released, so scans only return the payload length of the first
+ * symbol, or -1. The payload is fetched afterwards with nativeGetText()
+ * or nativeGetPayload().
+ */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecode
+	(JNIEnv *env, jclass cls, jlong handle, jbyteArray img, jint stride,
+	 jint x, jint y, jint w, jint h) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	const zbar_symbol_t *sym;
+	jsize len;
+	void *pixbuf;
+
+	len = (*env)->GetArrayLength(env, img);
+	pixbuf = (*env)->GetPrimitiveArrayCritical(env, img, NULL);
+	if (pixbuf == NULL) {
+		return -1;
+	}
+	sym = scan_region(dec, pixbuf, len, stride, x, y, w, h);
+	(*env)->ReleasePrimitiveArrayCritical(env, img, pixbuf, JNI_ABORT);
+
+	return symbol_length(sym);
+}
+
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecodeBuffer
+	(JNIEnv *env, jclass cls, jlong handle, jobject buf, jint stride,
+	 jint x, jint y, jint w, jint h) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	void *pixbuf;
+	jlong len;
+
+	pixbuf = (*env)->GetDirectBufferAddress(env, buf);
+	len = (*env)->GetDirectBufferCapacity(env, buf);
+	if (pixbuf == NULL || len <= 0) {
+		return -1;
+	}
+
+	return symbol_length(
+			scan_region(dec, pixbuf, len, stride, x, y, w, h));
+}
+
+/* Pixels are locked only for the conversion into luma, the bitmap is
+ * unlocked before the scan. The track is left as is, bitmap coordinates
+ * have nothing to do with preview frames. */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecodeBitmap
+	(JNIEnv *env, jclass cls, jlong handle, jobject bitmap,
+	 jint x, jint y, jint w, jint h) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	const zbar_symbol_t *sym;
+	AndroidBitmapInfo info;
+	unsigned long len;
+	void *pixels;
+	int64_t start = now_ns();
+
+	dec->result = NULL;
+	dec->scan_time = 0;
+	if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS ||
+			AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+		return -1;
+	}
+	len = convert_pixels(dec, &info, pixels, x, y, w, h);
+	AndroidBitmap_unlockPixels(env, bitmap);
+	if (len == 0) {
+		return -1;
+	}
+	sym = scan_luma(dec, dec->luma_data, len, w, h, w);
+	dec->loc_x += x;
+	dec->loc_y += y;
+	dec->scan_time = now_ns() - start;
+
+	return symbol_length(sym);
+}
+
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeTrack
+	(JNIEnv *env, jclass cls, jlong handle, jbyteArray img, jint stride,
+	 jint x, jint y, jint w, jint h) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	const zbar_symbol_t *sym;
+	jsize len;
+	void *pixbuf;
+
+	if (!dec->track_valid) {
+		dec->scan_time = 0;
+		return -1;
+	}
+	len = (*env)->GetArrayLength(env, img);
+	pixbuf = (*env)->GetPrimitiveArrayCritical(env, img, NULL);
+	if (pixbuf == NULL) {
+		return -1;
+	}
+	sym = track_region(dec, pixbuf, len, stride, x, y, w, h);
+	(*env)->ReleasePrimitiveArrayCritical(env, img, pixbuf, JNI_ABORT);
+
+	return symbol_length(sym);
+}
+
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeTrackBuffer
+	(JNIEnv *env, jclass cls, jlong handle, jobject buf, jint stride,
+	 jint x, jint y, jint w, jint h) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	void *pixbuf;
+	jlong len;
+
+	if (!dec->track_valid) {
+		dec->scan_time = 0;
+		return -1;
+	}
+	pixbuf = (*env)->GetDirectBufferAddress(env, buf);
+	len = (*env)->GetDirectBufferCapacity(env, buf);
+	if (pixbuf == NULL || len <= 0) {
+		return -1;
+	}
+
+	return symbol_length(
+			track_region(dec, pixbuf, len, stride, x, y, w, h));
+}
+
+JNIEXPORT jstring JNICALL Java_trikita_obsqr_QrDecoder_nativeGetText
+	(JNIEnv *env, jclass cls, jlong handle) {
+
+	const zbar_symbol_t *sym = first_symbol((trikita_decoder_t *) (intptr_t) handle);
+	if (sym == NULL) {
+		return NULL;
+	}
+	return (*env)->NewStringUTF(env, zbar_symbol_get_data(sym));
+}
+
+/* Copies the first symbol of the last scan into the direct buffer, if it
+ * fits. Returns the buffer size needed for it, or -1 without a symbol */
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeGetPayload
+	(JNIEnv *env, jclass cls, jlong handle, jobject buf) {
+
+	const zbar_symbol_t *sym = first_symbol((trikita_decoder_t *) (intptr_t) handle);
+	int32_t header[3];
+	uint8_t *out;
+	jlong cap;
+
+	if (sym == NULL) {
+		return -1;
+	}
+	header[0] = zbar_symbol_get_data_length(sym);
+	header[1] = symbology_mask(zbar_symbol_get_type(sym));
+	header[2] = zbar_symbol_get_quality(sym);
+	out = (*env)->GetDirectBufferAddress(env, buf);
+	cap = (*env)->GetDirectBufferCapacity(env, buf);
+	if (out != NULL && cap >= PAYLOAD_HEADER + header[0]) {
+		memcpy(out, header, PAYLOAD_HEADER);
+		memcpy(out + PAYLOAD_HEADER, zbar_symbol_get_data(sym), header[0]);
+	}
+	return PAYLOAD_HEADER + header[0];
+}
+
+/* Bounding box of QR finder lines seen by the last scan, in frame
+ * coordinates. Lines are kept by the QR reader until the next scan, which
+ * is what scan_pyramid() relies on as well. */
+JNIEXPORT jboolean JNICALL Java_trikita_obsqr_QrDecoder_nativeGetFinderBounds
+	(JNIEnv *env, jclass cls, jlong handle, jintArray bounds) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	int bbox[4];
+	jint out[4];
+
+	if (dec->result == NULL ||
+			!zbar_image_scanner_get_qr_finder_bbox(dec->scanner, bbox)) {
+		return JNI_FALSE;
+	}
+	out[0] = bbox[0] * dec->loc_scale + dec->loc_x;
+	out[1] = bbox[1] * dec->loc_scale + dec->loc_y;
+	out[2] = (bbox[2] + 1) * dec->loc_scale + dec->loc_x;
+	out[3] = (bbox[3] + 1) * dec->loc_scale + dec->loc_y;
+	(*env)->SetIntArrayRegion(env, bounds, 0, 4, out);
+	return JNI_TRUE;
+}
+
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecodeAll
+	(JNIEnv *env, jclass cls, jlong handle, jbyteArray img, jint stride,
+	 jint x, jint y, jint w, jint h, jintArray totals) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	const zbar_symbol_t *sym;
+	jsize len;
+	void *pixbuf;
+
+	len = (*env)->GetArrayLength(env, img);
+	pixbuf = (*env)->GetPrimitiveArrayCritical(env, img, NULL);
+	if (pixbuf == NULL) {
+		return 0;
+	}
+	sym = scan_region(dec, pixbuf, len, stride, x, y, w, h);
+	(*env)->ReleasePrimitiveArrayCritical(env, img, pixbuf, JNI_ABORT);
+
+	return count_symbols(env, sym, totals);
+}
+
+JNIEXPORT jint JNICALL Java_trikita_obsqr_QrDecoder_nativeDecodeAllBuffer
+	(JNIEnv *env, jclass cls, jlong handle, jobject buf, jint stride,
+	 jint x, jint y, jint w, jint h, jintArray totals) {
+
+	trikita_decoder_t *dec = (trikita_decoder_t *) (intptr_t) handle;
+	void *pixbuf;
+	jlong len;
+
+	pixbuf = (*env)->GetDirectBufferAddress(env, buf);
+	len = (*env)->GetDirectBufferCapacity(env, buf);
+	if (pixbuf == NULL || len <= 0) {
+		return 0;
+	}
+
+	return count_symbols(env,
+			scan_region(dec, pixbuf, len, stride, x, y, w, h), totals);
+}
+
+JNIEXPORT void JNICALL Java_trikita_obsqr_QrDecoder_nativeGetResults
+	(JNIEnv *env, jclass cls, jlong handle, jbyteArray data,
+	 jintArray dataStart, jintArray symbologies, jintArray qualities,
+	 jintArray points, jintArray pointStart, jint index) {
+
+	store_symbols(env, (trikita_decoder_t *) (intptr_t) handle, data,
+			dataStart, symbologies, qualities, points, pointStart, index);
+}
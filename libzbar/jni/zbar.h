@@ -1250,6 +1250,23 @@ extern void zbar_image_scanner_recycle_image(zbar_image_scanner_t *scanner,
 extern const zbar_symbol_set_t*
 zbar_image_scanner_get_results(const zbar_image_scanner_t *scanner);
 
+/** retrieve the number of QR finder pattern lines found in the last
+ * scanned image in the given direction (0 horizontal, 1 vertical).
+ * lines found without a decoded symbol usually mean a QR code is in
+ * view but the scan was too sparse or the image too blurry to read it
+ * @returns the number of lines or 0 if QR support is not compiled in
+ */
+extern int zbar_image_scanner_get_qr_finder_lines(const zbar_image_scanner_t *scanner,
+                                                  int direction);
+
+/** retrieve the bounding box of all QR finder pattern lines found in
+ * the last scanned image, as x0, y0, x1, y1 in image coordinates.
+ * @returns 0 if no finder lines were found (bbox is not modified)
+ * or 1 if the bounding box was stored
+ */
+extern int zbar_image_scanner_get_qr_finder_bbox(const zbar_image_scanner_t *scanner,
+                                                 int bbox[4]);
+
 /** scan for symbols in provided image.  The image format must be
  * "Y800" or "GRAY".
  * @returns >0 if symbols were successfully decoded from the image,
@@ -0,0 +1,130 @@
+package trikita.obsqr;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class LargeImageDecoderTest {
+
+	/* 8 MP, twice the LargeImageDecoder budget, so it's subsampled by 2 */
+	private final static int WIDTH = 4096;
+	private final static int HEIGHT = 2048;
+	/* Text of qr1, a 90 px code with modules under 3 px, too small to be
+	 * read once subsampled */
+	private final static String TEXT = "http://www.qrstuff.com/";
+
+	private Bitmap mCode;
+	private QrDecoder mDecoder;
+	private LargeImageDecoder mLargeImageDecoder;
+	private final QrPayload mPayload = new QrPayload();
+
+	@Before
+	public void setUp() {
+		Context context = InstrumentationRegistry.getContext();
+		int id = context.getResources().getIdentifier("qr1", "drawable", context.getPackageName());
+		mCode = BitmapFactory.decodeResource(context.getResources(), id);
+		mDecoder = new QrDecoder(context);
+		mLargeImageDecoder = new LargeImageDecoder(mDecoder);
+	}
+
+	@After
+	public void tearDown() {
+		mLargeImageDecoder.close();
+		mDecoder.close();
+		mCode.recycle();
+	}
+
+	@Test
+	public void testSmallCode() throws IOException {
+		BitmapRegionDecoder regions = image(new int[] {2900, 1300});
+		try {
+			// Only the full resolution regions can be decoded
+			assertNull(decodeSubsampled(regions));
+			assertTrue(mLargeImageDecoder.decode(regions, mPayload));
+			assertEquals(TEXT, mPayload.getText());
+		} finally {
+			regions.recycle();
+		}
+	}
+
+	@Test
+	public void testCodesFarApart() throws IOException {
+		int[][] layouts = {
+			{100, 100, WIDTH - 200, HEIGHT - 200},
+			{100, 100},
+			{WIDTH - 200, HEIGHT - 200},
+		};
+		// Both codes are found together and each one on its own
+		for (int[] codes : layouts) {
+			BitmapRegionDecoder regions = image(codes);
+			try {
+				assertNull(decodeSubsampled(regions));
+				assertTrue(mLargeImageDecoder.decode(regions, mPayload));
+				assertEquals(TEXT, mPayload.getText());
+			} finally {
+				regions.recycle();
+			}
+		}
+	}
+
+	@Test
+	public void testNoCode() throws IOException {
+		BitmapRegionDecoder regions = image(new int[0]);
+		try {
+			assertFalse(mLargeImageDecoder.decode(regions, mPayload));
+		} finally {
+			regions.recycle();
+		}
+	}
+
+	/* Draws copies of the code at the given x, y pairs on a white image and
+	 * encodes it as PNG, like a document scan */
+	private BitmapRegionDecoder image(int[] codes) throws IOException {
+		Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+		Canvas canvas = new Canvas(bitmap);
+		canvas.drawColor(Color.WHITE);
+		Paint paint = new Paint();
+		for (int i = 0; i + 1 < codes.length; i += 2) {
+			canvas.drawBitmap(mCode, codes[i], codes[i + 1], paint);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		bitmap.recycle();
+		byte[] png = out.toByteArray();
+		return BitmapRegionDecoder.newInstance(png, 0, png.length, false);
+	}
+
+	/* Decodes the image subsampled the way LargeImageDecoder does first */
+	private String decodeSubsampled(BitmapRegionDecoder regions) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = 2;
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		Bitmap coarse = regions.decodeRegion(new Rect(0, 0, WIDTH, HEIGHT), options);
+		try {
+			return mDecoder.decode(coarse, null);
+		} finally {
+			coarse.recycle();
+		}
+	}
+}
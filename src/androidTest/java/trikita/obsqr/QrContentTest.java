@@ -50,7 +50,7 @@ public class QrContentTest {
 		}}.entrySet()) {
 			QrContent qr = QrContent.from(getContext(), e.getKey());
 			assertEquals(QrContent.GooglePlayContent.class, qr.getClass());
-			assertEquals(e.getValue(), qr.content.toString());
+			assertEquals(e.getValue(), qr.getContent().toString());
 		}
 	}
 
@@ -65,7 +65,7 @@ public class QrContentTest {
 			QrContent qr = QrContent.from(getContext(), e.getKey());
 			if (e.getValue() != null) {
 				assertEquals(QrContent.WebUrlContent.class, qr.getClass());
-				assertEquals(e.getValue(), qr.content.toString());
+				assertEquals(e.getValue(), qr.getContent().toString());
 			} else {
 				assertFalse(qr instanceof QrContent.WebUrlContent);
 			}
@@ -81,7 +81,7 @@ public class QrContentTest {
 			QrContent qr = QrContent.from(getContext(), e.getKey());
 			if (e.getValue() != null) {
 				assertEquals(QrContent.EmailContent.class, qr.getClass());
-				assertEquals(e.getValue(), qr.content.toString());
+				assertEquals(e.getValue(), qr.getContent().toString());
 			} else {
 				assertFalse(qr instanceof QrContent.EmailContent);
 			}
@@ -13,6 +13,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class ZBarDecoderTest {
@@ -24,23 +25,55 @@ public class ZBarDecoderTest {
         assertEquals("trikita.obsqr", appContext.getPackageName());
     }
 
+	@Test
 	public void testBitmaps() {
-		Map<Integer, String> qrs = new HashMap<Integer, String>() {{
-			put(R.drawable.qr1, "http://www.qrstuff.com/");
-			put(R.drawable.qr2, "http://www.qrdroid.com");
-			put(R.drawable.qr3, "http://moo.com");
+		// Test resources belong to the test package, which differs per flavor
+		Context context = InstrumentationRegistry.getContext();
+		Map<String, String> qrs = new HashMap<String, String>() {{
+			put("qr1", "http://www.qrstuff.com/");
+			put("qr2", "http://www.qrdroid.com");
+			put("qr3", "http://moo.com");
 		}};
-		for (Map.Entry<Integer, String> qr : qrs.entrySet()) {
-			try {
-				Bitmap bitmap =
-					BitmapFactory.decodeResource(getInstrumentation().getContext().getResources(), qr.getKey());
-                String s = new QrDecoder(getInstrumentation().getContext())
-                        .decode(bitmap.getWidth(), bitmap.getHeight(), nv21(bitmap));
-				assertEquals(qr.getValue(), s);
-			} catch (Exception e) {
-				e.printStackTrace();
+		QrDecoder decoder = new QrDecoder(context);
+		for (Map.Entry<String, String> qr : qrs.entrySet()) {
+			int id = context.getResources().getIdentifier(qr.getKey(), "drawable",
+					context.getPackageName());
+			Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), id);
+			String s = decoder.decode(bitmap.getWidth(), bitmap.getHeight(), nv21(bitmap));
+			assertEquals(qr.getValue(), s);
+		}
+		decoder.close();
+	}
+
+	@Test
+	public void testDecodeBitmap() {
+		Context context = InstrumentationRegistry.getContext();
+		Map<String, String> qrs = new HashMap<String, String>() {{
+			put("qr1", "http://www.qrstuff.com/");
+			put("qr2", "http://www.qrdroid.com");
+			put("qr3", "http://moo.com");
+		}};
+		QrDecoder decoder = new QrDecoder(context);
+		QrPayload payload = new QrPayload();
+		for (Map.Entry<String, String> qr : qrs.entrySet()) {
+			int id = context.getResources().getIdentifier(qr.getKey(), "drawable",
+					context.getPackageName());
+			Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), id);
+			assertEquals(qr.getValue(), decoder.decode(bitmap, null));
+			assertTrue(decoder.decode(bitmap, null, payload));
+			assertEquals(qr.getValue(), payload.getText());
+			// Other configs are read directly or converted first
+			Bitmap rgb565 = bitmap.copy(Bitmap.Config.RGB_565, false);
+			assertEquals(qr.getValue(), decoder.decode(rgb565, null));
+			Bitmap alpha8 = bitmap.copy(Bitmap.Config.ALPHA_8, false);
+			if (alpha8 != null) {
+				decoder.decode(alpha8, null);
+				alpha8.recycle();
 			}
+			rgb565.recycle();
+			bitmap.recycle();
 		}
+		decoder.close();
 	}
 
 	private byte[] nv21(Bitmap bitmap) {
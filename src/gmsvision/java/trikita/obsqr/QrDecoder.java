@@ -1,7 +1,9 @@
 package trikita.obsqr;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.util.SparseArray;
 
 import com.google.android.gms.vision.Frame;
@@ -9,29 +11,248 @@ import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 public class QrDecoder {
 
+	/* Symbologies to look for, QR codes only by default */
+	public final static int SYMBOLOGY_QR = 1;
+	/* EAN-8, EAN-13, UPC-A, UPC-E and ISBN */
+	public final static int SYMBOLOGY_EAN = 1 << 1;
+	public final static int SYMBOLOGY_CODE128 = 1 << 2;
+	public final static int SYMBOLOGY_CODE39 = 1 << 3;
+	public final static int SYMBOLOGY_CODE93 = 1 << 4;
+	public final static int SYMBOLOGY_CODABAR = 1 << 5;
+	public final static int SYMBOLOGY_I25 = 1 << 6;
+	public final static int SYMBOLOGY_DATABAR = 1 << 7;
+	public final static int SYMBOLOGY_ALL = 0xff;
+
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Context mContext;
 	private BarcodeDetector mDetector;
+	private long mNativeTime;
+	/* Luma plane without row padding */
+	private ByteBuffer mPacked;
 
 	public QrDecoder(Context c) {
-		mDetector = new BarcodeDetector.Builder(c).build();
+		mContext = c;
+		mDetector = new BarcodeDetector.Builder(c).setBarcodeFormats(Barcode.QR_CODE).build();
 	}
 
+	/* Enables only the given SYMBOLOGY_* set, DataBar is not supported by
+	 * the detector. Detector is rebuilt, so this is not meant per frame. */
+	public void setSymbologies(int symbologies) {
+		if (mDetector == null) {
+			throw new IllegalStateException("QrDecoder is closed");
+		}
+		int formats = 0;
+		if ((symbologies & SYMBOLOGY_QR) != 0) formats |= Barcode.QR_CODE;
+		if ((symbologies & SYMBOLOGY_EAN) != 0) {
+			formats |= Barcode.EAN_13 | Barcode.EAN_8 | Barcode.UPC_A | Barcode.UPC_E;
+		}
+		if ((symbologies & SYMBOLOGY_CODE128) != 0) formats |= Barcode.CODE_128;
+		if ((symbologies & SYMBOLOGY_CODE39) != 0) formats |= Barcode.CODE_39;
+		if ((symbologies & SYMBOLOGY_CODE93) != 0) formats |= Barcode.CODE_93;
+		if ((symbologies & SYMBOLOGY_CODABAR) != 0) formats |= Barcode.CODABAR;
+		if ((symbologies & SYMBOLOGY_I25) != 0) formats |= Barcode.ITF;
+		mDetector.release();
+		mDetector = new BarcodeDetector.Builder(mContext).setBarcodeFormats(formats).build();
+	}
+
+	/* Decodes NV21 image data, the array is wrapped without a copy */
 	public String decode(int width, int height, byte []imgData) {
-		String result = null;
-		ByteBuffer buffer = ByteBuffer.wrap(imgData);
-		SparseArray<Barcode> barcodes = mDetector.detect(new Frame.Builder()
-				.setImageData(buffer, width, height, ImageFormat.NV21).build());
+		return detect(frame(ByteBuffer.wrap(imgData), width, height), null);
+	}
+
+	/* The detector always scans the whole frame, so region of interest only
+	 * filters out codes that are outside of it. Null means whole frame. */
+	public String decode(byte []imgData, int width, int height, Rect roi) {
+		return detect(frame(ByteBuffer.wrap(imgData), width, height), roi);
+	}
+
+	/* Decodes a luminance plane from a direct buffer. The detector has no
+	 * notion of row stride, so padded rows are copied into a tight buffer
+	 * first, see frame(). */
+	public String decode(ByteBuffer direct, int width, int height, int rowStride) {
+		return decode(direct, width, height, rowStride, null);
+	}
+
+	public String decode(ByteBuffer direct, int width, int height, int rowStride, Rect roi) {
+		return detect(frame(direct, width, height, rowStride), roi);
+	}
+
+	/* Stores the decoded code into the payload container, returns false and
+	 * clears it if nothing is found */
+	public boolean decode(byte []imgData, int width, int height, Rect roi, QrPayload payload) {
+		return detectPayload(frame(ByteBuffer.wrap(imgData), width, height), roi, payload);
+	}
+
+	public boolean decode(ByteBuffer direct, int width, int height, int rowStride, Rect roi,
+			QrPayload payload) {
+		return detectPayload(frame(direct, width, height, rowStride), roi, payload);
+	}
+
+	/* Decodes a still image, the detector reads the bitmap itself. Region of
+	 * interest is in bitmap pixels, null means the whole bitmap. */
+	public String decode(Bitmap bitmap, Rect roi) {
+		return detect(new Frame.Builder().setBitmap(bitmap).build(), roi);
+	}
+
+	public boolean decode(Bitmap bitmap, Rect roi, QrPayload payload) {
+		return detectPayload(new Frame.Builder().setBitmap(bitmap).build(), roi, payload);
+	}
+
+	/* Collects every code of the frame into the results container, which is
+	 * cleared first. Returns the number of codes found. */
+	public int decodeAll(byte []imgData, int width, int height, Rect roi, QrResults results) {
+		return detectAll(frame(ByteBuffer.wrap(imgData), width, height), roi, results);
+	}
+
+	public int decodeAll(ByteBuffer direct, int width, int height, int rowStride, Rect roi,
+			QrResults results) {
+		return detectAll(frame(direct, width, height, rowStride), roi, results);
+	}
+
+	/* Scan density and resolution are managed by the detector itself,
+	 * these are no-ops kept for API compatibility with the zbar flavor */
+	public void setScanDensity(int density) {}
+
+	public void setAdaptiveScanDensity(int densest, int sparsest) {}
+
+	public void setDownscaledScan(int scale) {}
+
+	public void setTracking(boolean tracking) {}
+
+	/* The detector doesn't report partial detections */
+	public boolean getFinderBounds(Rect bounds) {
+		return false;
+	}
+
+	/* Time spent in the detector by the last decode, in nanoseconds */
+	public long getNativeTime() {
+		return mNativeTime;
+	}
+
+	public int getScanDensity() {
+		return 1;
+	}
+
+	private static Frame frame(ByteBuffer buffer, int width, int height) {
+		return new Frame.Builder().setImageData(buffer, width, height, ImageFormat.NV21).build();
+	}
+
+	/* The detector needs at least width * height bytes, while the last row
+	 * of a padded plane is shorter than the row stride. Such planes are
+	 * copied row by row into a buffer reused between frames. */
+	private Frame frame(ByteBuffer direct, int width, int height, int rowStride) {
+		if (!direct.isDirect()) {
+			throw new IllegalArgumentException("ByteBuffer must be direct");
+		}
+		if (rowStride < width) {
+			throw new IllegalArgumentException("rowStride < width");
+		}
+		if (rowStride == width && direct.capacity() >= width * height) {
+			return frame(direct, width, height);
+		}
+		if (mPacked == null || mPacked.capacity() < width * height) {
+			mPacked = ByteBuffer.allocateDirect(width * height);
+		}
+		ByteBuffer src = direct.duplicate();
+		mPacked.clear();
+		int rows = Math.min(height, (direct.capacity() - width) / rowStride + 1);
+		for (int y = 0; y < rows; y++) {
+			src.limit(y * rowStride + width).position(y * rowStride);
+			mPacked.put(src);
+		}
+		mPacked.clear();
+		return frame(mPacked, width, height);
+	}
+
+	private SparseArray<Barcode> detectBarcodes(Frame frame) {
+		if (mDetector == null) {
+			throw new IllegalStateException("QrDecoder is closed");
+		}
+		long start = System.nanoTime();
+		try {
+			return mDetector.detect(frame);
+		} finally {
+			mNativeTime = System.nanoTime() - start;
+		}
+	}
+
+	private static boolean inRoi(Barcode b, Rect roi) {
+		return roi == null ||
+			roi.contains(b.getBoundingBox().centerX(), b.getBoundingBox().centerY());
+	}
+
+	private String detect(Frame frame, Rect roi) {
+		Barcode b = detectBarcode(frame, roi);
+		return b == null ? null : b.rawValue;
+	}
+
+	/* Returns the first code inside the region of interest */
+	private Barcode detectBarcode(Frame frame, Rect roi) {
+		SparseArray<Barcode> barcodes = detectBarcodes(frame);
 		if (barcodes != null) {
 			for(int i = 0; i < barcodes.size(); i++) {
 				Barcode b = barcodes.get(barcodes.keyAt(i));
-				if (b.rawValue != null) {
-					result = b.rawValue;
+				if (b.rawValue != null && inRoi(b, roi)) {
+					return b;
 				}
-				System.out.println("Barcode = " + b.rawValue);
 			}
 		}
-		return result;
+		return null;
+	}
+
+	/* Payload is the UTF-8 encoded raw value, the detector has no quality
+	 * metric so it's always 1 */
+	private boolean detectPayload(Frame frame, Rect roi, QrPayload payload) {
+		Barcode b = detectBarcode(frame, roi);
+		if (b == null) {
+			payload.clear();
+			return false;
+		}
+		payload.set(symbology(b.format), 1, b.rawValue.getBytes(UTF_8));
+		return true;
+	}
+
+	/* The detector has no quality metric, all codes are reported with 1 */
+	private int detectAll(Frame frame, Rect roi, QrResults results) {
+		results.clear();
+		SparseArray<Barcode> barcodes = detectBarcodes(frame);
+		if (barcodes != null) {
+			for (int i = 0; i < barcodes.size(); i++) {
+				Barcode b = barcodes.valueAt(i);
+				if (b.rawValue != null && inRoi(b, roi)) {
+					results.add(symbology(b.format), 1, b.rawValue.getBytes(UTF_8),
+							b.cornerPoints);
+				}
+			}
+		}
+		return results.size();
+	}
+
+	private static int symbology(int format) {
+		switch (format) {
+			case Barcode.QR_CODE: return SYMBOLOGY_QR;
+			case Barcode.EAN_13:
+			case Barcode.EAN_8:
+			case Barcode.UPC_A:
+			case Barcode.UPC_E: return SYMBOLOGY_EAN;
+			case Barcode.CODE_128: return SYMBOLOGY_CODE128;
+			case Barcode.CODE_39: return SYMBOLOGY_CODE39;
+			case Barcode.CODE_93: return SYMBOLOGY_CODE93;
+			case Barcode.CODABAR: return SYMBOLOGY_CODABAR;
+			case Barcode.ITF: return SYMBOLOGY_I25;
+			default: return 0;
+		}
+	}
+
+	public void close() {
+		if (mDetector != null) {
+			mDetector.release();
+			mDetector = null;
+		}
 	}
 }
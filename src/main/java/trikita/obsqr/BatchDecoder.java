@@ -0,0 +1,238 @@
+package trikita.obsqr;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/* Decodes a batch of still images, e.g. shared from the gallery, on a pool
+ * of worker threads. Each worker owns its QrDecoder and LargeImageDecoder,
+ * so decoders are never shared, and closes them when it goes idle. The pool
+ * is as big as the number of cores, but never bigger than the heap can
+ * hold image buffers for. Results are classified with QrContent.from() on
+ * the worker and delivered on the main thread as soon as each image is
+ * done, in completion order.
+ */
+public class BatchDecoder {
+
+	private final static String tag = "BatchDecoder";
+
+	/* Peak image memory of one worker, the subsampled image or tile of the
+	 * LargeImageDecoder plus its reused tile, both RGB_565 */
+	private final static long WORKER_MEMORY = 16 * 1024 * 1024;
+	/* Workers may use up to a quarter of the heap */
+	private final static int HEAP_SHARE = 4;
+	/* Idle workers exit and release their decoders after 5 sec */
+	private final static long KEEP_ALIVE = 5000;
+
+	public interface Callback {
+		/* Called for every image, content is null if there is no code or
+		 * the image can't be read */
+		void onImageDecoded(int index, Uri uri, QrContent content);
+		/* Called once all images of the batch are done */
+		void onBatchDone(int found, int total);
+	}
+
+	/* Worker thread with its own decoders, created on first use */
+	private static class Worker extends Thread {
+		QrDecoder decoder;
+		LargeImageDecoder largeImageDecoder;
+		final QrPayload payload = new QrPayload();
+
+		Worker(Runnable r) {
+			super(r, "BatchDecoder");
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				super.run();
+			} finally {
+				if (decoder != null) {
+					largeImageDecoder.close();
+					decoder.close();
+				}
+			}
+		}
+	}
+
+	private final Context mContext;
+	private final Callback mCallback;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final ThreadPoolExecutor mExecutor;
+
+	/* Changes with every batch, images of older batches are skipped by the
+	 * workers and their results are ignored */
+	private volatile int mBatch;
+	private int mPending;
+	private int mFound;
+	private int mTotal;
+
+	public BatchDecoder(Context context, Callback callback) {
+		mContext = context;
+		mCallback = callback;
+		int threads = getThreadCount();
+		mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), Worker::new);
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	public static int getThreadCount() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		long memory = Runtime.getRuntime().maxMemory() / HEAP_SHARE;
+		return (int) Math.max(1, Math.min(cores, memory / WORKER_MEMORY));
+	}
+
+	/* Cancels the running batch, if any, and starts decoding the images.
+	 * Should be called on the main thread. */
+	public void decode(List<Uri> uris) {
+		cancel();
+		final int batch = mBatch;
+		mPending = mTotal = uris.size();
+		mFound = 0;
+		for (int i = 0; i < uris.size(); i++) {
+			final int index = i;
+			final Uri uri = uris.get(i);
+			mExecutor.execute(() -> {
+				if (batch != mBatch) {
+					return;
+				}
+				QrContent content = null;
+				try {
+					content = decode(uri);
+				} catch (Throwable e) {
+					// Every image must be delivered for the batch to finish
+					Log.w(tag, "Failed to decode " + uri, e);
+				}
+				final QrContent result = content;
+				mMainHandler.post(() -> deliver(batch, index, uri, result));
+			});
+		}
+		if (uris.isEmpty()) {
+			mCallback.onBatchDone(0, 0);
+		}
+	}
+
+	/* Images not started yet are skipped, the ones being decoded are
+	 * finished but not delivered. Should be called on the main thread. */
+	public void cancel() {
+		mBatch++;
+	}
+
+	/* Cancels the batch and lets the workers exit */
+	public void close() {
+		cancel();
+		mExecutor.shutdown();
+	}
+
+	private void deliver(int batch, int index, Uri uri, QrContent content) {
+		if (batch != mBatch) {
+			return;
+		}
+		if (content != null) {
+			mFound++;
+		}
+		mCallback.onImageDecoded(index, uri, content);
+		if (--mPending == 0) {
+			mCallback.onBatchDone(mFound, mTotal);
+		}
+	}
+
+	/* Runs on a worker thread */
+	private QrContent decode(Uri uri) {
+		Worker worker = (Worker) Thread.currentThread();
+		if (worker.decoder == null) {
+			worker.decoder = new QrDecoder(mContext);
+			worker.largeImageDecoder = new LargeImageDecoder(worker.decoder);
+		}
+		boolean found;
+		try {
+			found = decodeRegions(worker, uri);
+		} catch (IOException e) {
+			// Not a format BitmapRegionDecoder supports, e.g. GIF or BMP
+			found = decodeBitmap(worker, uri);
+		} catch (SecurityException e) {
+			Log.d(tag, "Failed to read " + uri + ": " + e);
+			found = false;
+		}
+		if (!found) {
+			return null;
+		}
+		DecodeMetrics.beginSection(DecodeMetrics.TRACE_CONTENT);
+		try {
+			return QrContent.from(mContext, worker.payload.getText());
+		} finally {
+			DecodeMetrics.endSection();
+		}
+	}
+
+	private boolean decodeRegions(Worker worker, Uri uri) throws IOException {
+		InputStream in = mContext.getContentResolver().openInputStream(uri);
+		if (in == null) {
+			return false;
+		}
+		try {
+			return worker.largeImageDecoder.decode(in, worker.payload);
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Images of other formats are decoded whole, subsampled to the pixel
+	 * budget of the LargeImageDecoder, so a big BMP or GIF takes no more
+	 * memory than its coarse pass */
+	private boolean decodeBitmap(Worker worker, Uri uri) {
+		try {
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			decodeStream(uri, options);
+			if (options.outWidth <= 0 || options.outHeight <= 0) {
+				return false;
+			}
+			int sample = 1;
+			while ((long) (options.outWidth / sample) * (options.outHeight / sample) >
+					LargeImageDecoder.MAX_PIXELS) {
+				sample *= 2;
+			}
+			options.inJustDecodeBounds = false;
+			options.inSampleSize = sample;
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+			Bitmap bitmap = decodeStream(uri, options);
+			if (bitmap == null) {
+				return false;
+			}
+			try {
+				return worker.decoder.decode(bitmap, null, worker.payload);
+			} finally {
+				bitmap.recycle();
+			}
+		} catch (IOException | SecurityException e) {
+			Log.d(tag, "Failed to read " + uri + ": " + e);
+			return false;
+		}
+	}
+
+	private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+		InputStream in = mContext.getContentResolver().openInputStream(uri);
+		if (in == null) {
+			return null;
+		}
+		try {
+			return BitmapFactory.decodeStream(in, null, options);
+		} finally {
+			in.close();
+		}
+	}
+}
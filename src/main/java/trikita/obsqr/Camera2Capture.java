@@ -0,0 +1,377 @@
+package trikita.obsqr;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* Camera2 capture backend. Preview goes to the given surface, while luma
+ * frames are read from an ImageReader on the decoder worker thread, where
+ * only the latest image is decoded. Camera callbacks are delivered on the
+ * main thread, like the ones of the legacy Camera API.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Capture {
+
+	private final static String tag = "Camera2Capture";
+
+	/* ImageReader queue depth, older images are dropped by acquireLatestImage() */
+	private final static int MAX_IMAGES = 3;
+	/* Tag of the request that starts a focus sweep */
+	private final static Object FOCUS_TRIGGER = new Object();
+
+	public interface FocusCallback {
+		/* Called on the main thread once the focus is locked */
+		void onFocusDone(boolean success);
+	}
+
+	private final CameraManager mManager;
+	private final DecodePipeline mDecodePipeline;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	private final String mCameraId;
+	private final CameraCharacteristics mCharacteristics;
+
+	private CameraDevice mDevice;
+	private CameraCaptureSession mSession;
+	private ImageReader mImageReader;
+	private CaptureRequest.Builder mRequestBuilder;
+	private boolean mOpen;
+
+	private FocusCallback mFocusCallback;
+	private boolean mFocusTriggered;
+
+	private Surface mPreviewSurface;
+	private int mPreviewWidth;
+	private int mPreviewHeight;
+
+	/* Returns null when there is no camera with full Camera2 support, in
+	 * that case legacy Camera API works better */
+	public static Camera2Capture create(Context context, DecodePipeline pipeline) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+			return null;
+		}
+		CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+		if (manager == null) {
+			return null;
+		}
+		try {
+			String fallbackId = null;
+			for (String id : manager.getCameraIdList()) {
+				CameraCharacteristics c = manager.getCameraCharacteristics(id);
+				Integer level = c.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+				if (level == null ||
+						level == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+					continue;
+				}
+				Integer facing = c.get(CameraCharacteristics.LENS_FACING);
+				if (facing != null && facing == CameraMetadata.LENS_FACING_BACK) {
+					return new Camera2Capture(manager, pipeline, id, c);
+				}
+				if (fallbackId == null) {
+					fallbackId = id;
+				}
+			}
+			if (fallbackId != null) {
+				return new Camera2Capture(manager, pipeline, fallbackId,
+						manager.getCameraCharacteristics(fallbackId));
+			}
+		} catch (CameraAccessException | RuntimeException e) {
+			Log.d(tag, "Camera2 is not available: " + e);
+		}
+		return null;
+	}
+
+	private Camera2Capture(CameraManager manager, DecodePipeline pipeline,
+			String id, CameraCharacteristics characteristics) {
+		mManager = manager;
+		mDecodePipeline = pipeline;
+		mCameraId = id;
+		mCharacteristics = characteristics;
+		Log.d(tag, "Using camera " + id);
+	}
+
+	/* Sizes that both the preview surface and the YUV image reader support */
+	public List<Point> getSupportedPreviewSizes() {
+		List<Point> sizes = new ArrayList<>();
+		StreamConfigurationMap map =
+			mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+		if (map == null) {
+			return sizes;
+		}
+		Size[] yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+		List<Size> surfaceSizes = Arrays.asList(map.getOutputSizes(SurfaceHolder.class));
+		if (yuvSizes == null) {
+			return sizes;
+		}
+		for (Size s : yuvSizes) {
+			if (surfaceSizes.contains(s)) {
+				sizes.add(new Point(s.getWidth(), s.getHeight()));
+			}
+		}
+		return sizes;
+	}
+
+	public int getSensorOrientation() {
+		Integer orientation = mCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+		return orientation == null ? 0 : orientation;
+	}
+
+	public boolean isFrontFacing() {
+		Integer facing = mCharacteristics.get(CameraCharacteristics.LENS_FACING);
+		return facing != null && facing == CameraMetadata.LENS_FACING_FRONT;
+	}
+
+	/* Cameras without continuous focus are focused by triggerFocus() */
+	public boolean isFocusContinuous() {
+		int mode = getFocusMode();
+		return mode == CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE ||
+			mode == CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+	}
+
+	/* Fixed focus cameras can't focus at all */
+	public boolean canFocus() {
+		return getFocusMode() != CameraMetadata.CONTROL_AF_MODE_OFF;
+	}
+
+	/* Starts a focus sweep, which locks the focus when it's done. Returns
+	 * false if the preview is not running */
+	public boolean triggerFocus(FocusCallback callback) {
+		if (mSession == null || mRequestBuilder == null) {
+			return false;
+		}
+		try {
+			mRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+					CameraMetadata.CONTROL_AF_TRIGGER_START);
+			mRequestBuilder.setTag(FOCUS_TRIGGER);
+			mSession.capture(mRequestBuilder.build(), mCaptureCallback, mHandler);
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.d(tag, "Failed to trigger focus: " + e);
+			return false;
+		} finally {
+			mRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+					CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+			mRequestBuilder.setTag(null);
+		}
+		mFocusCallback = callback;
+		mFocusTriggered = false;
+		return true;
+	}
+
+	/* Cancels the focus sweep or unlocks the focus, continuous focus modes
+	 * start refocusing by themselves again */
+	public void cancelFocus() {
+		mFocusCallback = null;
+		if (mSession == null || mRequestBuilder == null) {
+			return;
+		}
+		try {
+			mRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+					CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+			mSession.capture(mRequestBuilder.build(), null, mHandler);
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.d(tag, "Failed to cancel focus: " + e);
+		} finally {
+			mRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+					CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+		}
+	}
+
+	public boolean open() {
+		if (mOpen) return true;
+		try {
+			mManager.openCamera(mCameraId, mStateCallback, mHandler);
+		} catch (CameraAccessException | SecurityException e) {
+			Log.d(tag, "Camera failed to open: " + e);
+			return false;
+		}
+		mOpen = true;
+		return true;
+	}
+
+	/* Starts streaming into the preview surface, which must already be
+	 * sized to one of getSupportedPreviewSizes(). If the camera is still
+	 * opening, the session is created as soon as it's open */
+	public void startPreview(Surface surface, int width, int height) {
+		if (surface == mPreviewSurface && width == mPreviewWidth &&
+				height == mPreviewHeight && mSession != null) {
+			return;
+		}
+		stopPreview();
+		mPreviewSurface = surface;
+		mPreviewWidth = width;
+		mPreviewHeight = height;
+		createSession();
+	}
+
+	public void stopPreview() {
+		if (mSession != null) {
+			mSession.close();
+			mSession = null;
+		}
+		mRequestBuilder = null;
+		mFocusCallback = null;
+		if (mImageReader != null) {
+			// Image may still be decoded, the pipeline closes the reader after it
+			mDecodePipeline.detach(mImageReader);
+			mImageReader = null;
+		}
+		mPreviewSurface = null;
+	}
+
+	public void close() {
+		stopPreview();
+		if (mDevice != null) {
+			mDevice.close();
+			mDevice = null;
+		}
+		mOpen = false;
+	}
+
+	private void createSession() {
+		if (mDevice == null || mPreviewSurface == null) return;
+
+		final ImageReader reader = ImageReader.newInstance(mPreviewWidth, mPreviewHeight,
+				ImageFormat.YUV_420_888, MAX_IMAGES);
+		mImageReader = reader;
+		mDecodePipeline.attach(reader);
+		try {
+			mDevice.createCaptureSession(
+					Arrays.asList(mPreviewSurface, reader.getSurface()),
+					new CameraCaptureSession.StateCallback() {
+						@Override
+						public void onConfigured(CameraCaptureSession session) {
+							// Preview might have been restarted meanwhile
+							if (reader != mImageReader) {
+								session.close();
+								return;
+							}
+							mSession = session;
+							startRepeatingRequest(session);
+						}
+
+						@Override
+						public void onConfigureFailed(CameraCaptureSession session) {
+							Log.d(tag, "Capture session configuration failed");
+						}
+					}, mHandler);
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.d(tag, "Failed to create capture session: " + e);
+		}
+	}
+
+	private void startRepeatingRequest(CameraCaptureSession session) {
+		try {
+			CaptureRequest.Builder builder =
+				mDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+			builder.addTarget(mPreviewSurface);
+			builder.addTarget(mImageReader.getSurface());
+			builder.set(CaptureRequest.CONTROL_AF_MODE, getFocusMode());
+			session.setRepeatingRequest(builder.build(), mCaptureCallback, mHandler);
+			mRequestBuilder = builder;
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.d(tag, "Failed to start preview: " + e);
+		}
+	}
+
+	/* Continuous focus is preferred, like on the legacy path. Other modes
+	 * only focus when triggerFocus() is called, OFF means there is no
+	 * autofocus at all */
+	private int getFocusMode() {
+		int[] modes = mCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+		if (modes == null) {
+			return CameraMetadata.CONTROL_AF_MODE_OFF;
+		}
+		int[] preferred = {
+			CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE,
+			CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO,
+			CameraMetadata.CONTROL_AF_MODE_AUTO,
+			CameraMetadata.CONTROL_AF_MODE_MACRO,
+		};
+		for (int p : preferred) {
+			for (int mode : modes) {
+				if (mode == p) {
+					return mode;
+				}
+			}
+		}
+		return CameraMetadata.CONTROL_AF_MODE_OFF;
+	}
+
+	/* Watches the focus state after a focus sweep has been triggered.
+	 * Results come in order, so the ones before the trigger are skipped */
+	private final CameraCaptureSession.CaptureCallback mCaptureCallback =
+		new CameraCaptureSession.CaptureCallback() {
+			@Override
+			public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+					TotalCaptureResult result) {
+				if (mFocusCallback == null) return;
+				if (request.getTag() == FOCUS_TRIGGER) {
+					mFocusTriggered = true;
+				}
+				if (!mFocusTriggered) return;
+				Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+				if (state != null &&
+						state != CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED &&
+						state != CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED) {
+					return;
+				}
+				FocusCallback callback = mFocusCallback;
+				mFocusCallback = null;
+				callback.onFocusDone(state != null &&
+						state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED);
+			}
+		};
+
+	private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+		@Override
+		public void onOpened(CameraDevice camera) {
+			if (!mOpen) {
+				// Closed while opening
+				camera.close();
+				return;
+			}
+			mDevice = camera;
+			createSession();
+		}
+
+		@Override
+		public void onDisconnected(CameraDevice camera) {
+			Log.d(tag, "Camera disconnected");
+			camera.close();
+			if (mDevice == camera) {
+				stopPreview();
+				mDevice = null;
+				mOpen = false;
+			}
+		}
+
+		@Override
+		public void onError(CameraDevice camera, int error) {
+			Log.d(tag, "Camera error " + error);
+			onDisconnected(camera);
+		}
+	};
+}
@@ -1,9 +1,11 @@
 package trikita.obsqr;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
-import android.hardware.Camera.Size;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Surface;
@@ -13,48 +15,56 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A simple wrapper around a Camera and a SurfaceView that renders a centered preview of the Camera
  * to the surface. Also provided autofocus effect.
  * 
+ * On API 21+ devices with full Camera2 support frames are captured with
+ * Camera2Capture instead, legacy Camera API is used everywhere else.
  */
 
 public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
-	Camera.AutoFocusCallback, Camera.PreviewCallback {
+	Camera.PreviewCallback, DecodePipeline.Callback {
 
 	private final static String tag = "CameraPreview";
-	/* It'll be 2 sec between two autoFocus() calls */
-	private final static int AUTOFOCUS_FREQUENCY = 2000;
+	/* Number of preallocated preview frames cycled through the camera */
+	private final static int PREVIEW_BUFFERS = 3;
 
-	private final QrDecoder mDecoder;
+	private final DecodePipeline mDecodePipeline;
+	private final Camera2Capture mCamera2;
+	private final FocusController mFocus;
 
 	private SurfaceHolder mHolder;
 
-	private Size mPreviewSize;
-	private List<Size> mSupportedPreviewSizes;
+	private Point mPreviewSize;
+	private List<Point> mSupportedPreviewSizes;
 	private Camera mCamera;
 	private Camera.Parameters mParams = null;	
 	private int mCameraId;
 
+	private byte[][] mPreviewBuffers = new byte[PREVIEW_BUFFERS][];
+	private int mPreviewBufferSize = 0;
+
 	private boolean mRotated = false;
-	private boolean mFocusModeOn;
+	private int mDisplayOrientation = 0;
+	private boolean mFrontFacing = false;
+	private boolean mSurfaceReady;
 
-	private OnQrDecodedListener mOnQrDecodedListener;
+	/* Scan area in view coordinates, mapped into preview frame coordinates.
+	 * Frame ROI is empty when the area is outside of the frame */
+	private Rect mScanArea = null;
+	private final Rect mChildRect = new Rect();
+	private final Rect mFrameRoi = new Rect();
+	private boolean mHasFrameRoi = false;
 
-	private final Runnable mAutoFocusRunnable = new Runnable() {
-		@Override
-		public void run() {
-			mFocusModeOn = true;
-			if (mCamera != null) {
-				mCamera.autoFocus(CameraPreview.this);
-			}
-		}
-	};
+	private OnQrDecodedListener mOnQrDecodedListener;
 
 	public interface OnQrDecodedListener {
-		void onQrDecoded(String url);
+		/* Payload is only valid during the call */
+		void onQrDecoded(QrPayload payload);
 		void onQrNotFound();
 	}
 
@@ -69,7 +79,9 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 	public CameraPreview(Context context, AttributeSet attrs, int defStyle) {
 		super(context, attrs, defStyle);
 
-		mDecoder = new QrDecoder(context);
+		mDecodePipeline = new DecodePipeline(context, this);
+		mCamera2 = Camera2Capture.create(context, mDecodePipeline);
+		mFocus = new FocusController(mDecodePipeline.getMetrics());
 
 		SurfaceView mSurfaceView = new SurfaceView(context);
 		addView(mSurfaceView);
@@ -85,6 +97,18 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 		mOnQrDecodedListener = l; 
 	}
 
+	/* Limits decoding to the part of the preview that is inside the given
+	 * rectangle (in view coordinates), null means the whole frame. Nothing
+	 * is decoded when the area is outside of the preview */
+	public void setScanArea(Rect area) {
+		mScanArea = (area == null ? null : new Rect(area));
+		updateFrameRoi();
+	}
+
+	public DecodePipeline getDecodePipeline() {
+		return mDecodePipeline;
+	}
+
 	@Override
 	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 		// We purposely disregard child measurements because act as a
@@ -112,11 +136,11 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 
 			if (mPreviewSize != null) {
 				if (mRotated) {
-					previewWidth = mPreviewSize.width;
-					previewHeight = mPreviewSize.height;
+					previewWidth = mPreviewSize.x;
+					previewHeight = mPreviewSize.y;
 				} else {
-					previewWidth = mPreviewSize.height;
-					previewHeight = mPreviewSize.width;
+					previewWidth = mPreviewSize.y;
+					previewHeight = mPreviewSize.x;
 				}
 			}
 
@@ -130,6 +154,7 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 				int dx = (int)((width - scaledChildWidth) * 0.5);
 				Log.d(tag, "Scaled width: " + scaledChildWidth + ", dx="+dx);
 				child.layout(dx, 0, width - dx, height);
+				mChildRect.set(dx, 0, width - dx, height);
 				Log.d(tag, "l="+dx+" t=0"+" r="+(width-dx)+" b="+height);
 			} else {
 				Log.d(tag, "Scaling by width");
@@ -137,27 +162,69 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 				int dy = (int)((height - scaledChildHeight) * 0.5);
 				Log.d(tag, "Scaled height: " + scaledChildHeight+ ", dy="+dy);
 				child.layout(0, 0, width, height - 2*dy);
+				mChildRect.set(0, 0, width, height - 2*dy);
 				Log.d(tag, "l="+0+" t="+dy+" r="+width+" b="+(height-dy));
 			}
+			updateFrameRoi();
 		} else {
 			Log.d(tag, "Nothing to do in onLayout()");
 		}
 	}
 
-	private Size getOptimalPreviewSize(List<Size> sizes, int w, int h) {
+	/* Maps scan area from view coordinates into preview frame coordinates,
+	 * taking into account how the frame is scaled, rotated and mirrored on
+	 * screen */
+	private void updateFrameRoi() {
+		mHasFrameRoi = false;
+		if (mScanArea == null || mPreviewSize == null || mChildRect.isEmpty()) {
+			mDecodePipeline.setImageRoi(null);
+			return;
+		}
+		float l = (float) (mScanArea.left - mChildRect.left) / mChildRect.width();
+		float t = (float) (mScanArea.top - mChildRect.top) / mChildRect.height();
+		float r = (float) (mScanArea.right - mChildRect.left) / mChildRect.width();
+		float b = (float) (mScanArea.bottom - mChildRect.top) / mChildRect.height();
+
+		float fl, ft, fr, fb;
+		switch (mDisplayOrientation) {
+			case 90: fl = t; ft = 1 - r; fr = b; fb = 1 - l; break;
+			case 180: fl = 1 - r; ft = 1 - b; fr = 1 - l; fb = 1 - t; break;
+			case 270: fl = 1 - b; ft = l; fr = 1 - t; fb = r; break;
+			default: fl = l; ft = t; fr = r; fb = b;
+		}
+		if (mFrontFacing) {
+			// Front camera preview is mirrored before it's rotated
+			float x = fl;
+			fl = 1 - fr;
+			fr = 1 - x;
+		}
+
+		int w = mPreviewSize.x;
+		int h = mPreviewSize.y;
+		mFrameRoi.set((int) (fl * w), (int) (ft * h), (int) (fr * w), (int) (fb * h));
+		if (!mFrameRoi.intersect(0, 0, w, h)) {
+			mFrameRoi.setEmpty();
+		}
+		mHasFrameRoi = true;
+		Log.d(tag, "Frame ROI: " + mFrameRoi.left + "," + mFrameRoi.top + " " +
+				mFrameRoi.width() + "x" + mFrameRoi.height());
+		mDecodePipeline.setImageRoi(mFrameRoi);
+	}
+
+	private Point getOptimalPreviewSize(List<Point> sizes, int w, int h) {
 		final double ASPECT_TOLERANCE = 0.1;
 		double targetRatio = (double) w / h;
 		if (sizes == null) return null;
 
-		Size optimalSize = null;
+		Point optimalSize = null;
 		double minDiff = Double.MAX_VALUE;
 
 		// Try to find an size match aspect ratio and size
-		for (Size size : sizes) {
-			double ratio = (double) size.width / size.height;
+		for (Point size : sizes) {
+			double ratio = (double) size.x / size.y;
 			if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
-			double diff = Math.pow(Math.abs(size.height - h), 2) +
-				Math.pow(Math.abs(size.width - w), 2);
+			double diff = Math.pow(Math.abs(size.y - h), 2) +
+				Math.pow(Math.abs(size.x - w), 2);
 			if (diff < minDiff) {
 				optimalSize = size;
 				minDiff = diff;
@@ -167,9 +234,9 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 		// Cannot find the one match the aspect ratio, ignore the requirement
 		if (optimalSize == null) {
 			minDiff = Double.MAX_VALUE;
-			for (Size size : sizes) {
-				double diff = Math.pow(Math.abs(size.height - h), 2) +
-					Math.pow(Math.abs(size.width - w), 2);
+			for (Point size : sizes) {
+				double diff = Math.pow(Math.abs(size.y - h), 2) +
+					Math.pow(Math.abs(size.x - w), 2);
 				if (diff < minDiff) {
 					optimalSize = size;
 					minDiff = diff;
@@ -186,6 +253,16 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 		Log.d(tag, "mCameraId="+mCameraId);
 		Camera.getCameraInfo(mCameraId, info);
 
+		mFrontFacing = (info.facing == CameraInfo.CAMERA_FACING_FRONT);
+		int result = getDisplayOrientation(rotation, info.orientation, mFrontFacing);
+		mCamera.stopPreview();
+		mCamera.setDisplayOrientation(result);
+		mDisplayOrientation = result;
+		updateFrameRoi();
+	}
+
+	/* Returns clockwise rotation of the camera image on the display */
+	private int getDisplayOrientation(int rotation, int sensorOrientation, boolean front) {
 		int degrees = 0;
 		switch (rotation) {
 			case Surface.ROTATION_0: degrees = 0; mRotated = false; break;
@@ -198,37 +275,42 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 		Log.d(tag, "Camera rotated: " + degrees + " degrees");
 
 		int result;
-		if (info.facing == CameraInfo.CAMERA_FACING_FRONT) {
+		if (front) {
 			Log.d(tag, "Front facing camera");
-			result = (info.orientation + degrees) % 360;
+			result = (sensorOrientation + degrees) % 360;
 			result = (360 - result) % 360;  // compensate the mirror
 		} else {  // back-facing
 			Log.d(tag, "Back facing camera");
-			result = (info.orientation - degrees + 360) % 360;
+			result = (sensorOrientation - degrees + 360) % 360;
 		}
-		mCamera.stopPreview();
-		mCamera.setDisplayOrientation(result);
+		return result;
 	}
 
 	public boolean acquireCamera(int rotation) {
+		mDecodePipeline.start();
+		if (mCamera2 != null) {
+			return acquireCamera2(rotation);
+		}
 		if (mCamera != null) {
 			setCameraDisplayOrientation(rotation);
 			mCamera.startPreview();
-			mCamera.setPreviewCallback(this);
-			postDelayed(mAutoFocusRunnable, AUTOFOCUS_FREQUENCY);
+			startPreviewCallback();
+			mFocus.start(mDecodePipeline.getBlurredFrames());
 		} else {
 			mCamera = openCamera();
 			if (mCamera == null) {
 				return false;
 			}
 
-			mSupportedPreviewSizes = mCamera.getParameters().getSupportedPreviewSizes();
-			if (mSupportedPreviewSizes == null) {
+			List<Camera.Size> sizes = mCamera.getParameters().getSupportedPreviewSizes();
+			if (sizes == null) {
 				Log.d(tag, "mSupportedPreviewSizes is null");
 				return false;
 			}
-			for (Size s : mSupportedPreviewSizes) {
+			mSupportedPreviewSizes = new ArrayList<>();
+			for (Camera.Size s : sizes) {
 				Log.d(tag, "Preview size: " + s.width + "x" + s.height);
+				mSupportedPreviewSizes.add(new Point(s.width, s.height));
 			}
 			requestFocus();
 			setCameraDisplayOrientation(rotation);
@@ -236,6 +318,30 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 		return true;
 	}
 
+	private boolean acquireCamera2(int rotation) {
+		if (!mCamera2.open()) {
+			return false;
+		}
+		mFocus.configure(mCamera2);
+		mFocus.start(mDecodePipeline.getBlurredFrames());
+		if (mSupportedPreviewSizes == null) {
+			mSupportedPreviewSizes = mCamera2.getSupportedPreviewSizes();
+			if (mSupportedPreviewSizes.isEmpty()) {
+				Log.d(tag, "mSupportedPreviewSizes is empty");
+				return false;
+			}
+			requestLayout();
+		}
+		mFrontFacing = mCamera2.isFrontFacing();
+		mDisplayOrientation = getDisplayOrientation(rotation,
+				mCamera2.getSensorOrientation(), mFrontFacing);
+		updateFrameRoi();
+		if (mSurfaceReady) {
+			mCamera2.startPreview(mHolder.getSurface(), mPreviewSize.x, mPreviewSize.y);
+		}
+		return true;
+	}
+
 	private Camera openCamera() {
 		Camera camera;
 		try {
@@ -274,10 +380,13 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 	}
 
 	public void releaseCamera() {
-		removeCallbacks(mAutoFocusRunnable);
+		mDecodePipeline.stop();
+		mFocus.stop();
+		if (mCamera2 != null) {
+			mCamera2.close();
+		}
 		if (mCamera != null) {
 			mCamera.stopPreview();
-			mCamera.cancelAutoFocus();
 		}
 	}
 
@@ -288,7 +397,6 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 		try {
 			if (mCamera != null) {
 				mCamera.setPreviewDisplay(mHolder);
-				mCamera.setPreviewCallback(this);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -300,26 +408,49 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 	}
 
 	public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
+		if (mCamera2 != null) {
+			surfaceChanged2(w, h);
+			return;
+		}
 		// now that the size is known, set up the camera parameters and begin
 		// the preview.
 		if (mCamera != null) {
 			mParams = mCamera.getParameters();
 			
-			mParams.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
+			mParams.setPreviewSize(mPreviewSize.x, mPreviewSize.y);
+			mFocus.configure(mCamera, mParams);
 			requestLayout();
 
 			mCamera.setParameters(mParams);
 			mCamera.startPreview();
-			// Launch autofocus mode 
-			postDelayed(mAutoFocusRunnable, AUTOFOCUS_FREQUENCY);
+			startPreviewCallback();
+			mFocus.start(mDecodePipeline.getBlurredFrames());
+		}
+	}
+
+	/* Camera2 streams into the surface directly, so the surface buffer must
+	 * have exactly the preview size, it's scaled to the view by the compositor */
+	private void surfaceChanged2(int w, int h) {
+		mSurfaceReady = false;
+		if (mPreviewSize == null) return;
+		if (w != mPreviewSize.x || h != mPreviewSize.y) {
+			mHolder.setFixedSize(mPreviewSize.x, mPreviewSize.y);
+			return;
 		}
+		mSurfaceReady = true;
+		requestLayout();
+		mCamera2.startPreview(mHolder.getSurface(), w, h);
 	}
 
 	public void surfaceDestroyed(SurfaceHolder holder) {
+		mSurfaceReady = false;
+		if (mCamera2 != null) {
+			mCamera2.stopPreview();
+		}
 		// the surface will be destroyed when we return, so stop the preview.
 		if (mCamera != null) {
 			mCamera.stopPreview();
-			mCamera.setPreviewCallback(null);
+			mCamera.setPreviewCallbackWithBuffer(null);
 			mCamera.release();
 			mCamera = null;
 		}
@@ -329,33 +460,69 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback,
 	private int mLastKnownWidth = -1;
 	private int mLastKnownHeight = -1;
 
+	/* Hands a ring of preallocated frame buffers to the camera, so that
+	 * preview frames are delivered without allocating a new array each time */
+	private void startPreviewCallback() {
+		if (mCamera == null || mParams == null) return;
+
+		Camera.Size size = mParams.getPreviewSize();
+		int bpp = ImageFormat.getBitsPerPixel(mParams.getPreviewFormat());
+		int bufferSize = size.width * size.height * bpp / 8;
+		if (bufferSize != mPreviewBufferSize) {
+			Log.d(tag, "Allocating " + PREVIEW_BUFFERS + " preview buffers of " + bufferSize + " bytes");
+			for (int i = 0; i < PREVIEW_BUFFERS; i++) {
+				mPreviewBuffers[i] = new byte[bufferSize];
+			}
+			mPreviewBufferSize = bufferSize;
+		}
+
+		// Passing null callback clears the buffer queue of the camera
+		mCamera.setPreviewCallbackWithBuffer(null);
+		for (byte[] buffer : mPreviewBuffers) {
+			mCamera.addCallbackBuffer(buffer);
+		}
+		mCamera.setPreviewCallbackWithBuffer(this);
+	}
+
+	/* Returns a frame buffer back to the camera once it is no longer used */
+	private void recycleBuffer(byte[] data) {
+		if (mCamera != null && data != null && data.length == mPreviewBufferSize) {
+			mCamera.addCallbackBuffer(data);
+		}
+	}
+
+	/* Frames are decoded during focus sweeps as well, many codes are
+	 * readable long before the focus settles */
 	public void onPreviewFrame(byte[] data, Camera camera) {
-		if (mFocusModeOn) return;
-		
-		mCamera.setPreviewCallback(null);
-		int width = mParams.getPreviewSize().width;  
+		int width = mParams.getPreviewSize().width;
 		int height = mParams.getPreviewSize().height;
-		
+
 		if (width != mLastKnownWidth || height != mLastKnownHeight) {
 			Log.d(tag, "onPreviewFrame w=" + width + " h=" + height);
 			mLastKnownWidth = width;
 			mLastKnownHeight = height;
 		}
 
-		// Get decoded string
-		String s = mDecoder.decode(width, height, data);
-		if (s != null) {
-			mOnQrDecodedListener.onQrDecoded(s);
+		// Decode on the worker thread, the buffer goes back to the camera
+		// only after the decoder is done with it
+		mDecodePipeline.submit(data, width, height, mHasFrameRoi ? mFrameRoi : null);
+	}
+
+	/* ---------------------- DecodePipeline.Callback --------------------- */
+	@Override
+	public void onFrameDecoded(byte[] data, QrPayload payload) {
+		recycleBuffer(data);
+		mFocus.onFrame(payload != null, mDecodePipeline.getBlurredFrames());
+		if (payload != null) {
+			mOnQrDecodedListener.onQrDecoded(payload);
 		} else {
 			mOnQrDecodedListener.onQrNotFound();
 		}
-		mCamera.setPreviewCallback(this);
 	}
 
-	/* ---------------------- AutoFocusCallback --------------------- */
 	@Override
-	public void onAutoFocus(boolean success, Camera camera) {
-		postDelayed(mAutoFocusRunnable, AUTOFOCUS_FREQUENCY);
-		mFocusModeOn = false;
+	public void onFrameDropped(byte[] data) {
+		recycleBuffer(data);
+		mFocus.onFrame(false, mDecodePipeline.getBlurredFrames());
 	}
 }
@@ -0,0 +1,164 @@
+package trikita.obsqr;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Counters of the decode pipeline, updated without locks from the main and
+ * decoder threads and readable from any thread. Values are cumulative since
+ * the pipeline was created, so two dumps can be compared by difference.
+ * Trace sections are visible in systrace/Perfetto under the same names.
+ */
+public class DecodeMetrics {
+
+	public final static String TRACE_DECODE = "QrDecoder.decode";
+	public final static String TRACE_CONTENT = "QrContent.from";
+
+	/* Upper bounds of decode time histogram buckets in milliseconds, the
+	 * last bucket counts everything slower */
+	private final static int[] DECODE_TIME_BUCKETS = {1, 2, 4, 8, 16, 33, 66, 133};
+
+	private final AtomicInteger mFramesDelivered = new AtomicInteger();
+	private final AtomicInteger mFramesDropped = new AtomicInteger();
+	private final AtomicInteger mDecodes = new AtomicInteger();
+	private final AtomicInteger mResults = new AtomicInteger();
+	private final AtomicLong mDecodeTime = new AtomicLong();
+	private final AtomicLong mNativeTime = new AtomicLong();
+	private final AtomicIntegerArray mDecodeTimeHistogram =
+		new AtomicIntegerArray(DECODE_TIME_BUCKETS.length + 1);
+
+	private final AtomicLong mStartedAt = new AtomicLong();
+	private volatile long mTimeToFirstDecode = -1;
+
+	private final AtomicInteger mFocusSweeps = new AtomicInteger();
+	private final AtomicLong mFocusTime = new AtomicLong();
+
+	public static void beginSection(String name) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			Trace.beginSection(name);
+		}
+	}
+
+	public static void endSection() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			Trace.endSection();
+		}
+	}
+
+	/* Camera is acquired, time to first decode is measured from now */
+	void onStarted() {
+		mStartedAt.set(System.nanoTime());
+	}
+
+	void onFrameDelivered() {
+		mFramesDelivered.incrementAndGet();
+	}
+
+	void onFrameDropped() {
+		mFramesDropped.incrementAndGet();
+	}
+
+	/* One decoder invocation, times in nanoseconds */
+	void onDecode(long time, long nativeTime, boolean found) {
+		mDecodes.incrementAndGet();
+		mDecodeTime.addAndGet(time);
+		mNativeTime.addAndGet(nativeTime);
+		long ms = time / 1000000;
+		int i = 0;
+		while (i < DECODE_TIME_BUCKETS.length && ms >= DECODE_TIME_BUCKETS[i]) {
+			i++;
+		}
+		mDecodeTimeHistogram.incrementAndGet(i);
+		if (found) {
+			mResults.incrementAndGet();
+			long started = mStartedAt.getAndSet(0);
+			if (started != 0) {
+				mTimeToFirstDecode = (System.nanoTime() - started) / 1000000;
+			}
+		}
+	}
+
+	/* Autofocus sweep is over, in milliseconds */
+	void onFocusSweep(long time) {
+		mFocusSweeps.incrementAndGet();
+		mFocusTime.addAndGet(time);
+	}
+
+	public int getFramesDelivered() {
+		return mFramesDelivered.get();
+	}
+
+	public int getFramesDropped() {
+		return mFramesDropped.get();
+	}
+
+	public int getDecodes() {
+		return mDecodes.get();
+	}
+
+	public int getResults() {
+		return mResults.get();
+	}
+
+	/* Total time spent in QrDecoder.decode(), in nanoseconds */
+	public long getDecodeTime() {
+		return mDecodeTime.get();
+	}
+
+	/* Part of the decode time spent in the native scanner, in nanoseconds */
+	public long getNativeTime() {
+		return mNativeTime.get();
+	}
+
+	/* Number of decodes per DECODE_TIME_BUCKETS bucket */
+	public int[] getDecodeTimeHistogram() {
+		int[] histogram = new int[mDecodeTimeHistogram.length()];
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = mDecodeTimeHistogram.get(i);
+		}
+		return histogram;
+	}
+
+	/* Time from the latest camera start to its first result, in
+	 * milliseconds, -1 if nothing was decoded yet */
+	public long getTimeToFirstDecode() {
+		return mTimeToFirstDecode;
+	}
+
+	public int getFocusSweeps() {
+		return mFocusSweeps.get();
+	}
+
+	/* Total time of autofocus sweeps, in milliseconds */
+	public long getFocusTime() {
+		return mFocusTime.get();
+	}
+
+	public void dump(PrintWriter pw, String prefix) {
+		int decodes = getDecodes();
+		long decodeTime = getDecodeTime();
+		long nativeTime = getNativeTime();
+		pw.println(prefix + "frames delivered: " + getFramesDelivered() +
+				", dropped: " + getFramesDropped());
+		pw.println(prefix + "decodes: " + decodes + ", with result: " + getResults());
+		if (decodes > 0) {
+			pw.println(prefix + "decode time avg: " + decodeTime / decodes / 1000 + " us" +
+					", native: " + nativeTime / decodes / 1000 + " us" +
+					", jni+java: " + (decodeTime - nativeTime) / decodes / 1000 + " us");
+		}
+		StringBuilder sb = new StringBuilder(prefix).append("decode time histogram:");
+		int[] histogram = getDecodeTimeHistogram();
+		for (int i = 0; i < histogram.length; i++) {
+			sb.append(i < DECODE_TIME_BUCKETS.length ? " <" + DECODE_TIME_BUCKETS[i] : " >=" +
+					DECODE_TIME_BUCKETS[i - 1]).append("ms=").append(histogram[i]);
+		}
+		pw.println(sb);
+		pw.println(prefix + "time to first decode: " + getTimeToFirstDecode() + " ms");
+		pw.println(prefix + "focus sweeps: " + getFocusSweeps() +
+				", total: " + getFocusTime() + " ms");
+	}
+}
@@ -0,0 +1,425 @@
+package trikita.obsqr;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/* Decodes preview frames on a dedicated worker thread. Only the latest frame
+ * is kept when the worker is busy, older frames are dropped instead of being
+ * queued. Results and dropped frames are delivered on the main thread.
+ * Frames come either as byte arrays from the legacy Camera API, or from a
+ * Camera2 ImageReader that is read directly on the worker thread. Blurred
+ * frames and frames unchanged since a failed decode are skipped by the
+ * FrameGate before they reach the decoder.
+ */
+public class DecodePipeline implements Handler.Callback {
+
+	private final static String THREAD_NAME = "QrDecoder";
+	/* Slightly above background work, but never ahead of the UI and
+	 * display threads it would compete with for the cores */
+	private final static int THREAD_PRIORITY =
+		Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE;
+
+	private final static int MSG_DECODED = 1;
+	private final static int MSG_SKIPPED = 2;
+
+	/* Camera frames are scanned adaptively, from every line up to every
+	 * 3rd line while no code is in view */
+	private final static int SPARSEST_SCAN_DENSITY = 3;
+
+	/* Preview frames are searched for finder patterns at half resolution
+	 * first, full resolution is only used around them */
+	private final static int DOWNSCALED_SCAN = 2;
+
+	/* Weight of the latest sample in the average latency, 1/8 */
+	private final static int LATENCY_SMOOTHING = 3;
+
+	public interface Callback {
+		/* Called when decoder is done with the frame, result is null if
+		 * nothing was found. The result is reused for later frames, so it
+		 * must be copied if needed after the call. Data is null for
+		 * ImageReader frames */
+		void onFrameDecoded(byte[] data, QrPayload result);
+		/* Called when a newer frame replaced the frame before decoding, or
+		 * when the frame was skipped as blurred or unchanged */
+		void onFrameDropped(byte[] data);
+	}
+
+	private static class Frame {
+		byte[] data;
+		int width;
+		int height;
+		final Rect roi = new Rect();
+		boolean hasRoi;
+		long timestamp;
+		final QrPayload payload = new QrPayload();
+		boolean found;
+		int session;
+	}
+
+	private final Context mContext;
+	private final Callback mCallback;
+	private final Handler mMainHandler;
+
+	private final Object mLock = new Object();
+	private final ArrayDeque<Frame> mFramePool = new ArrayDeque<>();
+	private Frame mPendingFrame;
+	private boolean mDecodeScheduled;
+	/* Changes with every stop(), frames of older sessions that are still
+	 * queued on the main thread are dropped without returning their buffers */
+	private int mSession;
+	private final Rect mImageRoi = new Rect();
+	private boolean mImageHasRoi;
+
+	private HandlerThread mThread;
+	private Handler mWorkerHandler;
+	private QrDecoder mDecoder;
+	private final FrameGate mGate = new FrameGate();
+	private final DecodeMetrics mMetrics = new DecodeMetrics();
+	private final Rect mGateRect = new Rect();
+	private volatile boolean mRunning;
+
+	private ImageReader.OnImageAvailableListener mImageListener;
+	/* Readers detached but not closed yet, guarded by mLock */
+	private final ArrayList<Object> mClosingReaders = new ArrayList<>();
+
+	private volatile long mLastLatency;
+	private volatile long mAverageLatency;
+
+	private final Runnable mDecodeRunnable = new Runnable() {
+		@Override
+		public void run() {
+			Frame frame;
+			synchronized (mLock) {
+				frame = mPendingFrame;
+				mPendingFrame = null;
+				mDecodeScheduled = false;
+			}
+			if (frame == null) {
+				return;
+			}
+			if (!gate(frame.data, null, frame.width, frame.width, frame.height, frame)) {
+				mMainHandler.obtainMessage(MSG_SKIPPED, frame).sendToTarget();
+				return;
+			}
+			decode(frame, null, frame.width);
+			mMainHandler.obtainMessage(MSG_DECODED, frame).sendToTarget();
+		}
+	};
+
+	public DecodePipeline(Context context, Callback callback) {
+		mContext = context;
+		mCallback = callback;
+		mMainHandler = new Handler(Looper.getMainLooper(), this);
+	}
+
+	public void start() {
+		if (mThread != null) return;
+		mDecoder = new QrDecoder(mContext);
+		mDecoder.setAdaptiveScanDensity(1, SPARSEST_SCAN_DENSITY);
+		mDecoder.setDownscaledScan(DOWNSCALED_SCAN);
+		mDecoder.setTracking(true);
+		mThread = new HandlerThread(THREAD_NAME, THREAD_PRIORITY);
+		mThread.start();
+		mWorkerHandler = new Handler(mThread.getLooper());
+		mGate.reset();
+		mMetrics.onStarted();
+		mRunning = true;
+	}
+
+	/* Stops the worker and waits for the frame being decoded, so that no
+	 * buffer is still in use once this method returns. Frames not delivered
+	 * yet are dropped, their buffers are not returned. Native decoder
+	 * resources are released until the next start() */
+	public void stop() {
+		if (mThread == null) return;
+		mRunning = false;
+		mThread.quit();
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mThread = null;
+		mWorkerHandler = null;
+		mDecoder.close();
+		mDecoder = null;
+		synchronized (mLock) {
+			if (mPendingFrame != null) {
+				recycle(mPendingFrame);
+				mPendingFrame = null;
+			}
+			mDecodeScheduled = false;
+			mSession++;
+		}
+		// Worker is gone, closing reader messages may have been dropped
+		closeReaders();
+	}
+
+	/* Should be called on the main thread. The buffer must not be modified
+	 * until it's returned via one of the Callback methods. Region of interest
+	 * is copied, null means the whole frame and an empty one means nothing */
+	public void submit(byte[] data, int width, int height, Rect roi) {
+		if (!mRunning) {
+			mCallback.onFrameDropped(data);
+			return;
+		}
+		mMetrics.onFrameDelivered();
+		byte[] dropped = null;
+		synchronized (mLock) {
+			Frame frame = obtain();
+			frame.data = data;
+			frame.width = width;
+			frame.height = height;
+			frame.hasRoi = (roi != null);
+			if (roi != null) {
+				frame.roi.set(roi);
+			}
+			frame.timestamp = System.nanoTime();
+
+			if (mPendingFrame != null) {
+				dropped = mPendingFrame.data;
+				recycle(mPendingFrame);
+			}
+			mPendingFrame = frame;
+			if (!mDecodeScheduled) {
+				mDecodeScheduled = true;
+				mWorkerHandler.post(mDecodeRunnable);
+			}
+		}
+		if (dropped != null) {
+			mMetrics.onFrameDropped();
+			mCallback.onFrameDropped(dropped);
+		}
+	}
+
+	/* Sets region of interest for ImageReader frames, null means the whole
+	 * frame and an empty one means nothing. Byte array frames carry their own
+	 * region of interest */
+	public void setImageRoi(Rect roi) {
+		synchronized (mLock) {
+			mImageHasRoi = (roi != null);
+			if (roi != null) {
+				mImageRoi.set(roi);
+			}
+		}
+	}
+
+	/* Decodes YUV_420_888 images of the reader on the worker thread. When
+	 * decoder is busy, images queue up in the reader and all but the latest
+	 * one are dropped. Should be called after start() */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public void attach(ImageReader reader) {
+		if (mImageListener == null) {
+			mImageListener = new ImageReader.OnImageAvailableListener() {
+				@Override
+				public void onImageAvailable(ImageReader reader) {
+					decodeLatestImage(reader);
+				}
+			};
+		}
+		reader.setOnImageAvailableListener(mImageListener, mWorkerHandler);
+	}
+
+	/* Stops decoding images of the reader and closes it. Closing frees the
+	 * memory of acquired images, so the reader is closed on the worker thread
+	 * after the image being decoded, if any. Should be called on the main
+	 * thread instead of closing the reader */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public void detach(final ImageReader reader) {
+		reader.setOnImageAvailableListener(null, null);
+		synchronized (mLock) {
+			mClosingReaders.add(reader);
+		}
+		if (mWorkerHandler == null || !mWorkerHandler.post(this::closeReaders)) {
+			closeReaders();
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private void closeReaders() {
+		Object[] readers;
+		synchronized (mLock) {
+			readers = mClosingReaders.toArray();
+			mClosingReaders.clear();
+		}
+		for (Object reader : readers) {
+			((ImageReader) reader).close();
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private void decodeLatestImage(ImageReader reader) {
+		Image image;
+		try {
+			image = reader.acquireLatestImage();
+		} catch (IllegalStateException e) {
+			// Reader has been closed
+			return;
+		}
+		if (image == null) return;
+		mMetrics.onFrameDelivered();
+
+		Frame frame;
+		synchronized (mLock) {
+			frame = obtain();
+			frame.hasRoi = mImageHasRoi;
+			frame.roi.set(mImageRoi);
+		}
+		frame.timestamp = System.nanoTime();
+		boolean passed;
+		try {
+			Image.Plane luma = image.getPlanes()[0];
+			ByteBuffer buffer = luma.getBuffer();
+			passed = gate(null, buffer, luma.getRowStride(), image.getWidth(),
+					image.getHeight(), frame);
+			if (passed) {
+				frame.width = image.getWidth();
+				frame.height = image.getHeight();
+				decode(frame, buffer, luma.getRowStride());
+			}
+		} finally {
+			image.close();
+		}
+		mMainHandler.obtainMessage(passed ? MSG_DECODED : MSG_SKIPPED, frame).sendToTarget();
+	}
+
+	/* Decodes frame data or the buffer with the frame dimensions and region
+	 * of interest, and accounts for it in the gate and the metrics */
+	private void decode(Frame frame, ByteBuffer buffer, int stride) {
+		Rect roi = frame.hasRoi ? frame.roi : null;
+		if (roi != null && !roi.intersects(0, 0, frame.width, frame.height)) {
+			// Region of interest is off the frame, nothing to decode
+			frame.found = false;
+			frame.payload.clear();
+			return;
+		}
+		DecodeMetrics.beginSection(DecodeMetrics.TRACE_DECODE);
+		long start = System.nanoTime();
+		try {
+			if (buffer != null) {
+				frame.found = mDecoder.decode(buffer, frame.width, frame.height, stride, roi,
+						frame.payload);
+			} else {
+				frame.found = mDecoder.decode(frame.data, frame.width, frame.height, roi,
+						frame.payload);
+			}
+		} finally {
+			DecodeMetrics.endSection();
+		}
+		mMetrics.onDecode(System.nanoTime() - start, mDecoder.getNativeTime(), frame.found);
+		mGate.onDecoded(frame.found);
+	}
+
+	/* Returns true if the frame region should be decoded. Regions outside of
+	 * the frame are passed on, decode() reports no code for them */
+	private boolean gate(byte[] array, ByteBuffer buffer, int stride, int width, int height,
+			Frame frame) {
+		mGateRect.set(0, 0, width, height);
+		if (frame.hasRoi && !mGateRect.intersect(frame.roi)) {
+			return true;
+		}
+		return mGate.check(array, buffer, stride, mGateRect) == FrameGate.PASS;
+	}
+
+	@Override
+	public boolean handleMessage(Message msg) {
+		Frame frame = (Frame) msg.obj;
+		byte[] data = frame.data;
+		synchronized (mLock) {
+			if (frame.session != mSession) {
+				// Buffers were given back to the camera when it restarted
+				recycle(frame);
+				return true;
+			}
+		}
+		if (msg.what == MSG_DECODED) {
+			long latency = (System.nanoTime() - frame.timestamp) / 1000;
+			mLastLatency = latency;
+			mAverageLatency = mAverageLatency == 0 ? latency :
+				mAverageLatency + ((latency - mAverageLatency) >> LATENCY_SMOOTHING);
+			// Payload belongs to the frame, it's recycled after the callback
+			mCallback.onFrameDecoded(data, frame.found ? frame.payload : null);
+			synchronized (mLock) {
+				recycle(frame);
+			}
+			return true;
+		} else if (msg.what == MSG_SKIPPED) {
+			synchronized (mLock) {
+				recycle(frame);
+			}
+			if (data != null) {
+				mCallback.onFrameDropped(data);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	// must be called with mLock held
+	private Frame obtain() {
+		Frame frame = mFramePool.isEmpty() ? new Frame() : mFramePool.poll();
+		frame.session = mSession;
+		return frame;
+	}
+
+	// must be called with mLock held
+	private void recycle(Frame frame) {
+		frame.data = null;
+		frame.found = false;
+		mFramePool.push(frame);
+	}
+
+	/* Frame-to-result latency of the last decoded frame, in microseconds */
+	public long getLastLatency() {
+		return mLastLatency;
+	}
+
+	/* Smoothed frame-to-result latency, in microseconds */
+	public long getAverageLatency() {
+		return mAverageLatency;
+	}
+
+	public int getDecodedFrames() {
+		return mMetrics.getDecodes();
+	}
+
+	public int getDroppedFrames() {
+		return mMetrics.getFramesDropped();
+	}
+
+	/* Frames skipped by the gate, each one saves a decoder invocation */
+	public int getBlurredFrames() {
+		return mGate.getBlurredFrames();
+	}
+
+	public int getUnchangedFrames() {
+		return mGate.getUnchangedFrames();
+	}
+
+	public DecodeMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/* Writes all pipeline statistics, e.g. for dumpsys */
+	public void dump(PrintWriter pw, String prefix) {
+		mMetrics.dump(pw, prefix);
+		pw.println(prefix + "skipped blurred: " + getBlurredFrames() +
+				", unchanged: " + getUnchangedFrames());
+		pw.println(prefix + "latency last: " + getLastLatency() + " us" +
+				", avg: " + getAverageLatency() + " us");
+	}
+}
@@ -0,0 +1,174 @@
+package trikita.obsqr;
+
+import android.hardware.Camera;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+
+/* Keeps the camera in focus without stalling the preview. Continuous
+ * focus modes are preferred, the camera refocuses by itself then. A one-shot
+ * autofocus is only triggered when frames keep failing the sharpness check
+ * of the FrameGate, or, for cameras without continuous focus, when nothing
+ * has been decoded for a while. Frames are decoded during focus sweeps too.
+ * Works with the legacy camera or with Camera2Capture. All methods should
+ * be called on the main thread.
+ */
+class FocusController implements Camera.AutoFocusCallback, Camera2Capture.FocusCallback {
+
+	private final static String tag = "FocusController";
+
+	/* Refocus after this many blurred frames with nothing decoded */
+	private final static int BLURRED_FRAMES = 3;
+	/* Without continuous focus, refocus when nothing is decoded for 2 sec */
+	private final static long RETRY_INTERVAL = 2000;
+	/* Focus sweep without a callback is cancelled after 3 sec */
+	private final static long FOCUS_TIMEOUT = 3000;
+
+	private final DecodeMetrics mMetrics;
+
+	private Camera mCamera;
+	private Camera2Capture mCamera2;
+	private boolean mContinuous;
+	private boolean mCanFocus;
+	private boolean mFocusing;
+	private long mFocusStarted;
+	private long mLastFocused;
+	private int mLastBlurredFrames;
+	private int mBlurredFrames;
+
+	public FocusController(DecodeMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/* Picks the focus mode for the camera, parameters should be applied by
+	 * the caller afterwards */
+	public void configure(Camera camera, Camera.Parameters params) {
+		stop();
+		mCamera = camera;
+		mCamera2 = null;
+		List<String> modes = params.getSupportedFocusModes();
+		String mode = null;
+		if (modes != null) {
+			if (modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+				mode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
+			} else if (modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+				mode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO;
+			} else if (modes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+				mode = Camera.Parameters.FOCUS_MODE_AUTO;
+			} else if (modes.contains(Camera.Parameters.FOCUS_MODE_MACRO)) {
+				mode = Camera.Parameters.FOCUS_MODE_MACRO;
+			}
+		}
+		if (mode != null) {
+			params.setFocusMode(mode);
+		}
+		Log.d(tag, "Focus mode: " + (mode == null ? params.getFocusMode() : mode));
+		mContinuous = Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(mode) ||
+			Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals(mode);
+		// Fixed and infinity focus cameras can't focus at all
+		mCanFocus = (mode != null);
+	}
+
+	/* Camera2Capture picks the focus mode itself */
+	public void configure(Camera2Capture camera) {
+		stop();
+		mCamera = null;
+		mCamera2 = camera;
+		mContinuous = camera.isFocusContinuous();
+		mCanFocus = camera.canFocus();
+	}
+
+	/* Should be called when the preview is started */
+	public void start(int blurredFrames) {
+		mLastBlurredFrames = blurredFrames;
+		mBlurredFrames = 0;
+		mLastFocused = SystemClock.uptimeMillis();
+	}
+
+	public void stop() {
+		if (mFocusing) {
+			mMetrics.onFocusSweep(SystemClock.uptimeMillis() - mFocusStarted);
+			if (mCamera != null) {
+				mCamera.cancelAutoFocus();
+			} else if (mCamera2 != null) {
+				mCamera2.cancelFocus();
+			}
+		}
+		mFocusing = false;
+	}
+
+	/* Should be called for each frame done by the decoder, `blurredFrames`
+	 * is the running number of frames skipped as blurred */
+	public void onFrame(boolean decoded, int blurredFrames) {
+		long now = SystemClock.uptimeMillis();
+		int blurred = blurredFrames - mLastBlurredFrames;
+		mLastBlurredFrames = blurredFrames;
+		if (decoded) {
+			mBlurredFrames = 0;
+			mLastFocused = now;
+			return;
+		}
+		mBlurredFrames += blurred;
+		if ((mCamera == null && mCamera2 == null) || !mCanFocus) {
+			return;
+		}
+		if (mFocusing) {
+			if (now - mFocusStarted > FOCUS_TIMEOUT) {
+				Log.d(tag, "Focus timed out");
+				stop();
+				mLastFocused = now;
+			}
+			return;
+		}
+		if (mBlurredFrames >= BLURRED_FRAMES ||
+				(!mContinuous && now - mLastFocused >= RETRY_INTERVAL)) {
+			focus(now);
+		}
+	}
+
+	private void focus(long now) {
+		if (mCamera2 != null) {
+			if (!mCamera2.triggerFocus(this)) {
+				return;
+			}
+		} else {
+			try {
+				mCamera.autoFocus(this);
+			} catch (RuntimeException e) {
+				// Preview is not running
+				Log.d(tag, "autoFocus failed: " + e);
+				return;
+			}
+		}
+		mFocusing = true;
+		mFocusStarted = now;
+		mBlurredFrames = 0;
+	}
+
+	@Override
+	public void onAutoFocus(boolean success, Camera camera) {
+		if (!onFocused()) return;
+		if (mContinuous) {
+			// autoFocus() locks the focus in continuous modes, unlock it
+			camera.cancelAutoFocus();
+		}
+	}
+
+	@Override
+	public void onFocusDone(boolean success) {
+		if (!onFocused() || mCamera2 == null) return;
+		if (mContinuous) {
+			// Focus trigger locks the focus in continuous modes too
+			mCamera2.cancelFocus();
+		}
+	}
+
+	private boolean onFocused() {
+		if (!mFocusing) return false;
+		mFocusing = false;
+		mLastFocused = SystemClock.uptimeMillis();
+		mMetrics.onFocusSweep(mLastFocused - mFocusStarted);
+		return true;
+	}
+}
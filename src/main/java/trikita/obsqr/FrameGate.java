@@ -0,0 +1,155 @@
+package trikita.obsqr;
+
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+
+/* Cheap pre-decode check of a luma frame. Looks at a coarse grid of pixels
+ * only: their values make the frame signature, and the Laplacian at each of
+ * them estimates sharpness. Frames much blurrier than the recent ones (e.g.
+ * during heavy motion) are skipped, so are frames that look the same as the
+ * last frame where nothing was decoded. Not thread-safe, meant to be used
+ * on the decoder thread.
+ */
+public class FrameGate {
+
+	public final static int PASS = 0;
+	public final static int BLURRED = 1;
+	public final static int UNCHANGED = 2;
+
+	private final static int GRID_WIDTH = 32;
+	private final static int GRID_HEIGHT = 24;
+	private final static int GRID_SIZE = GRID_WIDTH * GRID_HEIGHT;
+
+	/* Frame is blurred when its sharpness is below half of the recent peak */
+	private final static int BLUR_RATIO = 2;
+	/* Peak sharpness decays by 1/16 per frame, following scene changes */
+	private final static int PEAK_DECAY = 4;
+	/* Absolute sharpness below which nothing is treated as blurred, such
+	 * frames are dark or flat and the ratio above means nothing for them */
+	private final static long MIN_SHARPNESS = 16;
+	/* Mean absolute luma difference per sample for an unchanged frame */
+	private final static int UNCHANGED_DIFF = 2;
+	/* Never skip more frames in a row, a wrong guess costs a few frames */
+	private final static int MAX_SKIPPED = 8;
+
+	private final int[] mSignature = new int[GRID_SIZE];
+	private final int[] mFailedSignature = new int[GRID_SIZE];
+	private boolean mHasFailedSignature;
+	private long mPeakSharpness;
+	private long mSharpness;
+	private int mSkippedInRow;
+
+	private byte[] mArray;
+	private ByteBuffer mBuffer;
+
+	/* Written by the decoder thread only, may be read from any thread */
+	private volatile int mPassed;
+	private volatile int mBlurred;
+	private volatile int mUnchanged;
+
+	/* Checks a frame, either from a byte array or a direct buffer, and
+	 * returns PASS, BLURRED or UNCHANGED. Frames that pass should be decoded
+	 * and followed by onDecoded(). */
+	public int check(byte[] array, ByteBuffer buffer, int stride, Rect r) {
+		mArray = array;
+		mBuffer = buffer;
+		try {
+			sample(stride, r);
+		} finally {
+			mArray = null;
+			mBuffer = null;
+		}
+
+		int verdict = PASS;
+		if (mSkippedInRow < MAX_SKIPPED) {
+			if (mSharpness >= MIN_SHARPNESS && mSharpness < mPeakSharpness / BLUR_RATIO) {
+				verdict = BLURRED;
+			} else if (mHasFailedSignature && difference() < UNCHANGED_DIFF * GRID_SIZE) {
+				verdict = UNCHANGED;
+			}
+		}
+		mPeakSharpness = Math.max(mSharpness,
+				mPeakSharpness - (mPeakSharpness >> PEAK_DECAY));
+
+		if (verdict == PASS) {
+			mSkippedInRow = 0;
+			mPassed++;
+		} else {
+			mSkippedInRow++;
+			if (verdict == BLURRED) {
+				mBlurred++;
+			} else {
+				mUnchanged++;
+			}
+		}
+		return verdict;
+	}
+
+	/* Should be called after the frame that passed has been decoded. Frames
+	 * similar to a failed one are skipped until the scene changes */
+	public void onDecoded(boolean found) {
+		mHasFailedSignature = !found;
+		if (!found) {
+			System.arraycopy(mSignature, 0, mFailedSignature, 0, GRID_SIZE);
+		}
+	}
+
+	public void reset() {
+		mHasFailedSignature = false;
+		mPeakSharpness = 0;
+		mSkippedInRow = 0;
+	}
+
+	/* Sharpness of the last checked frame, variance of the Laplacian */
+	public long getSharpness() {
+		return mSharpness;
+	}
+
+	public int getPassedFrames() {
+		return mPassed;
+	}
+
+	public int getBlurredFrames() {
+		return mBlurred;
+	}
+
+	public int getUnchangedFrames() {
+		return mUnchanged;
+	}
+
+	private int luma(int offset) {
+		return (mArray != null ? mArray[offset] : mBuffer.get(offset)) & 0xff;
+	}
+
+	/* Samples the grid inside the region, keeping 1 pixel away from its
+	 * borders for the Laplacian neighbours */
+	private void sample(int stride, Rect r) {
+		int w = r.width() - 2;
+		int h = r.height() - 2;
+		long sum = 0, sumSq = 0;
+		int n = 0;
+		if (w > 0 && h > 0) {
+			for (int j = 0; j < GRID_HEIGHT; j++) {
+				int row = (r.top + 1 + (2 * j + 1) * h / (2 * GRID_HEIGHT)) * stride;
+				for (int i = 0; i < GRID_WIDTH; i++) {
+					int o = row + r.left + 1 + (2 * i + 1) * w / (2 * GRID_WIDTH);
+					int p = luma(o);
+					int lap = 4 * p - luma(o - 1) - luma(o + 1) - luma(o - stride) - luma(o + stride);
+					mSignature[n++] = p;
+					sum += lap;
+					sumSq += lap * lap;
+				}
+			}
+		}
+		mSharpness = (n == 0 ? 0 : (sumSq - sum * sum / n) / n);
+	}
+
+	private int difference() {
+		int diff = 0;
+		for (int i = 0; i < GRID_SIZE; i++) {
+			diff += Math.abs(mSignature[i] - mFailedSignature[i]);
+		}
+		return diff;
+	}
+}
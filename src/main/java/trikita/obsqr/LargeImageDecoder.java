@@ -0,0 +1,213 @@
+package trikita.obsqr;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Decodes codes in images too big to be loaded as a whole, e.g. 20-50 MP
+ * document scans. A subsampled copy of the image is decoded first, a code
+ * that is big enough is found right there. Otherwise only the areas around
+ * QR finder patterns seen in the copy are decoded from the file at full
+ * resolution, tile by tile, through BitmapRegionDecoder. Patterns spread
+ * over the image are told apart by scanning the copy again in cells. When
+ * no finder patterns are reported (the gmsvision flavor never reports
+ * them) the whole image is tiled.
+ *
+ * Bitmaps are decoded as RGB_565 and tiles reuse one bitmap, so peak memory
+ * is about MAX_PIXELS * 2 bytes regardless of the image size. Not
+ * thread-safe, like the QrDecoder it uses.
+ */
+public class LargeImageDecoder {
+
+	/* Largest subsampled image and tile, 4 MP, 8 MB as RGB_565 */
+	final static int MAX_PIXELS = 2048 * 2048;
+	private final static int TILE_SIZE = 2048;
+	/* Tiles overlap by this much, codes smaller than that are never cut */
+	private final static int TILE_OVERLAP = 256;
+	/* Cells of the subsampled image, each one reports its finder patterns
+	 * separately, so that codes far apart don't merge into one region */
+	private final static int CELL_SIZE = 512;
+	private final static int CELL_OVERLAP = 64;
+
+	private final QrDecoder mDecoder;
+	private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+	private final Rect mRect = new Rect();
+	private final Rect mTileRect = new Rect();
+	private final Rect mRoi = new Rect();
+	private final Rect mBounds = new Rect();
+	private final List<Rect> mRegions = new ArrayList<>();
+	private Bitmap mTile;
+
+	public LargeImageDecoder(QrDecoder decoder) {
+		mDecoder = decoder;
+		mOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+	}
+
+	/* Reads the image from the stream, which is left open */
+	public boolean decode(InputStream in, QrPayload payload) throws IOException {
+		BitmapRegionDecoder regions = BitmapRegionDecoder.newInstance(in, false);
+		try {
+			return decode(regions, payload);
+		} finally {
+			regions.recycle();
+		}
+	}
+
+	/* Returns false and clears the payload if nothing is found */
+	public boolean decode(BitmapRegionDecoder regions, QrPayload payload) {
+		int width = regions.getWidth();
+		int height = regions.getHeight();
+		int sample = 1;
+		while ((long) (width / sample) * (height / sample) > MAX_PIXELS) {
+			sample *= 2;
+		}
+
+		mRegions.clear();
+		mRect.set(0, 0, width, height);
+		mOptions.inSampleSize = sample;
+		mOptions.inBitmap = null;
+		Bitmap coarse = regions.decodeRegion(mRect, mOptions);
+		if (coarse == null) {
+			payload.clear();
+			return false;
+		}
+		try {
+			if (mDecoder.decode(coarse, null, payload)) {
+				return true;
+			}
+			if (sample == 1) {
+				// Nothing to refine, the image was scanned at full resolution
+				return false;
+			}
+			if (mDecoder.getFinderBounds(mBounds)) {
+				if (mBounds.width() <= CELL_SIZE && mBounds.height() <= CELL_SIZE) {
+					addRegion(mBounds, sample, width, height);
+				} else if (findRegions(coarse, sample, width, height, payload)) {
+					return true;
+				}
+			}
+		} finally {
+			coarse.recycle();
+		}
+
+		if (mRegions.isEmpty()) {
+			mRegions.add(new Rect(0, 0, width, height));
+		}
+		mOptions.inSampleSize = 1;
+		try {
+			for (Rect region : mRegions) {
+				if (decodeTiles(regions, region, payload)) {
+					return true;
+				}
+			}
+		} finally {
+			mRegions.clear();
+		}
+		payload.clear();
+		return false;
+	}
+
+	/* Releases the tile bitmap, the decoder itself belongs to the caller */
+	public void close() {
+		if (mTile != null) {
+			mTile.recycle();
+			mTile = null;
+		}
+	}
+
+	/* Finder patterns are spread over the subsampled image, scans its cells
+	 * one by one to tell them apart. A code may still be decoded in a cell,
+	 * since the scan density adapts. */
+	private boolean findRegions(Bitmap coarse, int sample, int width, int height,
+			QrPayload payload) {
+		int step = CELL_SIZE - CELL_OVERLAP;
+		for (int y = 0; y < coarse.getHeight(); y += step) {
+			for (int x = 0; x < coarse.getWidth(); x += step) {
+				mRoi.set(x, y, x + CELL_SIZE, y + CELL_SIZE);
+				if (mDecoder.decode(coarse, mRoi, payload)) {
+					return true;
+				}
+				if (mDecoder.getFinderBounds(mBounds)) {
+					addRegion(mBounds, sample, width, height);
+				}
+			}
+		}
+		return false;
+	}
+
+	/* Adds the full resolution region around finder patterns seen in the
+	 * subsampled image. It is expanded by half its size to cover the rest
+	 * of the code, like the downscaled scan of preview frames does, and
+	 * merged with the regions it overlaps. */
+	private void addRegion(Rect bounds, int sample, int width, int height) {
+		int mx = bounds.width() / 2 + 1;
+		int my = bounds.height() / 2 + 1;
+		Rect region = new Rect((bounds.left - mx) * sample, (bounds.top - my) * sample,
+				(bounds.right + mx) * sample, (bounds.bottom + my) * sample);
+		if (!region.intersect(0, 0, width, height)) {
+			return;
+		}
+		for (int i = mRegions.size() - 1; i >= 0; i--) {
+			if (Rect.intersects(mRegions.get(i), region)) {
+				region.union(mRegions.remove(i));
+				// Grown region may overlap the ones checked already
+				i = mRegions.size();
+			}
+		}
+		mRegions.add(region);
+	}
+
+	/* Decodes the region at full resolution in overlapping tiles */
+	private boolean decodeTiles(BitmapRegionDecoder regions, Rect region, QrPayload payload) {
+		int step = TILE_SIZE - TILE_OVERLAP;
+		for (int y = region.top; y < region.bottom; y += step) {
+			for (int x = region.left; x < region.right; x += step) {
+				mTileRect.set(x, y, Math.min(x + TILE_SIZE, region.right),
+						Math.min(y + TILE_SIZE, region.bottom));
+				if (decodeTile(regions, mTileRect, payload)) {
+					return true;
+				}
+				if (x + TILE_SIZE >= region.right) {
+					break;
+				}
+			}
+			if (y + TILE_SIZE >= region.bottom) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/* Since Jelly Bean the region decoder draws into a reused bitmap that
+	 * may be bigger than the tile, only its top left part is scanned then.
+	 * The rest is cleared, the gmsvision flavor scans the whole bitmap and
+	 * would still see codes of the previous tile there. */
+	private boolean decodeTile(BitmapRegionDecoder regions, Rect tile, QrPayload payload) {
+		boolean reuse = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+		if (reuse && mTile == null) {
+			mTile = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565);
+		} else if (reuse && (tile.width() < TILE_SIZE || tile.height() < TILE_SIZE)) {
+			mTile.eraseColor(Color.WHITE);
+		}
+		mOptions.inBitmap = (reuse ? mTile : null);
+		Bitmap bitmap = regions.decodeRegion(tile, mOptions);
+		mOptions.inBitmap = null;
+		if (bitmap == null) {
+			return false;
+		}
+		mRoi.set(0, 0, tile.width(), tile.height());
+		boolean found = mDecoder.decode(bitmap, mRoi, payload);
+		if (bitmap != mTile) {
+			bitmap.recycle();
+		}
+		return found;
+	}
+}
@@ -4,9 +4,14 @@ import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.pm.PackageManager;
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.Bundle;
 import android.view.KeyEvent;
+import android.view.View;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public class ObsqrActivity extends Activity implements CameraPreview.OnQrDecodedListener {
 
@@ -17,7 +22,8 @@ public class ObsqrActivity extends Activity implements CameraPreview.OnQrDecoded
 
 	private QrContent mQrContent = null;
 
-	private String mLastKnownContent = "";
+	/* Payload of the code in view, empty when there is none */
+	private final QrPayload mLastKnownContent = new QrPayload();
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -29,6 +35,17 @@ public class ObsqrActivity extends Activity implements CameraPreview.OnQrDecoded
 
 		mCameraPreview.setOnQrDecodedListener(this);
 
+		// Only codes inside the viewfinder are decoded when it's enabled,
+		// otherwise the whole preview is
+		if (getResources().getBoolean(R.bool.use_viewfinder)) {
+			View viewfinder = findViewById(R.id.viewfinder);
+			viewfinder.setVisibility(View.VISIBLE);
+			viewfinder.addOnLayoutChangeListener((v, l, t, r, b, ol, ot, or, ob) ->
+					mCameraPreview.setScanArea(new Rect(l - mCameraPreview.getLeft(),
+						t - mCameraPreview.getTop(), r - mCameraPreview.getLeft(),
+						b - mCameraPreview.getTop())));
+		}
+
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
 			if (checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
 				requestPermissions(new String[]{Manifest.permission.CAMERA}, PERMISSIONS_REQUEST);
@@ -37,18 +54,27 @@ public class ObsqrActivity extends Activity implements CameraPreview.OnQrDecoded
 	}
 
 	@Override
-	public void onQrDecoded(String s) {
-		if (mLastKnownContent.equals(s) && mQrContent == null) { // Same content was cancelled
+	public void onQrDecoded(QrPayload payload) {
+		// Same content is either shown already or was cancelled, it's only
+		// parsed again after the code leaves the view. Payloads are compared
+		// as bytes, the text is only created for a new code.
+		if (mLastKnownContent.contentEquals(payload)) {
+			mDialog.keepOpen();
 			return;
 		}
-		mLastKnownContent = s;
-		mQrContent = QrContent.from(this, s);
+		mLastKnownContent.set(payload);
+		DecodeMetrics.beginSection(DecodeMetrics.TRACE_CONTENT);
+		try {
+			mQrContent = QrContent.from(this, payload.getText());
+		} finally {
+			DecodeMetrics.endSection();
+		}
 		mDialog.open(mQrContent);
 	}
 
 	@Override
 	public void onQrNotFound() {
-		mLastKnownContent = "";
+		mLastKnownContent.clear();
 	}
 
 	@Override
@@ -104,6 +130,15 @@ public class ObsqrActivity extends Activity implements CameraPreview.OnQrDecoded
 		}
 	}
 
+	/* Decoder statistics are available via
+	 * adb shell dumpsys activity trikita.obsqr/.ObsqrActivity */
+	@Override
+	public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+		super.dump(prefix, fd, writer, args);
+		writer.println(prefix + "DecodePipeline:");
+		mCameraPreview.getDecodePipeline().dump(writer, prefix + "  ");
+	}
+
 	@Override
 	public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
 		if (requestCode == PERMISSIONS_REQUEST &&
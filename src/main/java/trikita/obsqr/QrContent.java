@@ -18,23 +18,44 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/* Classified QR payload. Classification only picks the type, display text
+ * and parsed fields are built on first use and kept, since most payloads
+ * (duplicates, background scans) are never displayed.
+ */
 public abstract class QrContent {
     public final String rawContent;
 
-    public final String title;
-    public final String action;
-    public final Spannable content;
-
 	protected final Context context;
 
-    private QrContent(Context c, String s, String title, String action, Spannable content) {
+	private final int mTitleRes;
+	private final int mActionRes;
+	private Spannable mContent;
+
+    private QrContent(Context c, String s, int titleRes, int actionRes) {
 		this.context = c;
         this.rawContent = s;
-        this.action = action;
-        this.title = title;
-        this.content = content;
+		mTitleRes = titleRes;
+		mActionRes = actionRes;
     }
 
+	public String getTitle() {
+		return context.getString(mTitleRes);
+	}
+
+	public String getAction() {
+		return context.getString(mActionRes);
+	}
+
+	public Spannable getContent() {
+		if (mContent == null) {
+			mContent = render();
+		}
+		return mContent;
+	}
+
+	/* Builds display text, called once when content is first shown */
+	protected abstract Spannable render();
+
     public void performAction() {
 		try {
 			context.startActivity(getActionIntent());
@@ -93,33 +114,60 @@ public abstract class QrContent {
 		return Spannable.Factory.getInstance().newSpannable(s);
 	}
 
+	/* Payloads with a known URI scheme are classified by their prefix, so
+	 * the expensive web URL pattern only runs when no scheme matched */
 	public static QrContent from(Context c, String s) {
-		String m = s.toLowerCase();
-		if (m.matches(GooglePlayContent.MATCH)) {
-			return new GooglePlayContent(c, s);
-		} else if (m.matches(WebUrlContent.MATCH)) {
+		if (s.length() > 0) {
+			switch (Character.toLowerCase(s.charAt(0))) {
+				case 'm':
+					if (hasScheme(s, "market://", GooglePlayContent.PATTERN)) {
+						return new GooglePlayContent(c, s);
+					} else if (hasScheme(s, "mailto:", EmailContent.PATTERN)) {
+						return new EmailContent(c, s);
+					} else if (hasScheme(s, "mecard:", ContactContent.PATTERN)) {
+						return new ContactContent(c, s);
+					}
+					break;
+				case 't':
+					if (hasScheme(s, "tel:", PhoneNumberContent.PATTERN)) {
+						return new PhoneNumberContent(c, s);
+					}
+					break;
+				case 's':
+					if (hasScheme(s, "smsto:", SmsContent.PATTERN)) {
+						return new SmsContent(c, s);
+					}
+					break;
+				case 'g':
+					if (hasScheme(s, "geo:", GeoLocationContent.PATTERN)) {
+						return new GeoLocationContent(c, s);
+					}
+					break;
+				case 'w':
+					if (hasScheme(s, "wifi:", WifiContent.PATTERN)) {
+						return new WifiContent(c, s);
+					}
+					break;
+			}
+		}
+		if (WebUrlContent.PATTERN.matcher(s.toLowerCase()).matches()) {
 			return new WebUrlContent(c, s);
-		} else if (m.matches(EmailContent.MATCH)) {
-			return new EmailContent(c, s);
-		} else if (m.matches(PhoneNumberContent.MATCH)) {
-			return new PhoneNumberContent(c, s);
-		} else if (m.matches(SmsContent.MATCH)) {
-			return new SmsContent(c, s);
-		} else if (m.matches(ContactContent.MATCH)) {
-			return new ContactContent(c, s);
-		} else if (m.matches(GeoLocationContent.MATCH)) {
-			return new GeoLocationContent(c, s);
-		} else if (m.matches(WifiContent.MATCH)) {
-			return new WifiContent(c, s);
-		} else {
-			return new QrMixedContent(c, s);
 		}
+		return new QrMixedContent(c, s);
+	}
+
+	private static boolean hasScheme(String s, String scheme, Pattern pattern) {
+		return s.regionMatches(true, 0, scheme, 0, scheme.length()) &&
+			pattern.matcher(s).matches();
 	}
 
 	/** Mixed content: plain text that may contain some URLs, emails etc */
 	static class QrMixedContent extends QrContent {
 		public QrMixedContent(Context c, String s) {
-			super(c, s, c.getString(R.string.title_text), c.getString(R.string.action_text), spannable(s));
+			super(c, s, R.string.title_text, R.string.action_text);
+		}
+		protected Spannable render() {
+			return spannable(rawContent);
 		}
 		public void performAction() {
 			copyToClipboard(context, rawContent);
@@ -129,10 +177,12 @@ public abstract class QrContent {
 	/** Web URL */
 	static class WebUrlContent extends QrContent {
 		public final static String MATCH = android.util.Patterns.WEB_URL.pattern();
+		final static Pattern PATTERN = android.util.Patterns.WEB_URL;
 		public WebUrlContent(Context c, String s) {
-			super(c, s, c.getString(R.string.title_url), c.getString(R.string.action_url), url(s));
+			super(c, s, R.string.title_url, R.string.action_url);
 		}
-		private static Spannable url(String s) {
+		protected Spannable render() {
+			String s = rawContent;
 			if (!s.startsWith("http:") && !s.startsWith("https:") && !s.startsWith("ftp:")) {
 				s = "http://" + s;
 			}
@@ -143,30 +193,38 @@ public abstract class QrContent {
 	/** E-mail address */
 	static class EmailContent extends QrContent {
 		public final static String MATCH = "mailto:(.*)";
+		final static Pattern PATTERN = Pattern.compile(MATCH, Pattern.CASE_INSENSITIVE);
+		private MailTo mMailTo;
+		private boolean mParsed;
 		public EmailContent(Context c, String s) {
-			super(c, s, c.getString(R.string.title_email),
-					c.getString(R.string.action_email), getContent(c, s));
+			super(c, s, R.string.title_email, R.string.action_email);
 		}
-		private static Spannable getContent(Context c, String s) {
-			try {
-				MailTo uri = MailTo.parse("mailto:" + s.substring(7));
-				System.out.println("" + uri.getTo());
-				return spannable(uri.getTo());
-			} catch (ParseException e) {
-				e.printStackTrace();
-				return spannable(s);
+		/* Returns null if the address can't be parsed */
+		private MailTo mailTo() {
+			if (!mParsed) {
+				mParsed = true;
+				try {
+					mMailTo = MailTo.parse("mailto:" + rawContent.substring(7));
+				} catch (ParseException e) {
+					e.printStackTrace();
+				}
 			}
+			return mMailTo;
+		}
+		protected Spannable render() {
+			MailTo uri = mailTo();
+			return spannable(uri != null ? uri.getTo() : rawContent);
 		}
 		public Intent getActionIntent() {
 			Intent intent = new Intent(Intent.ACTION_SEND);
 			intent.setType("text/plain");
-			try {
-				MailTo uri = MailTo.parse("mailto:" + rawContent.substring(7));
+			MailTo uri = mailTo();
+			if (uri != null) {
 				intent.putExtra(Intent.EXTRA_EMAIL, uri.getTo());
 				intent.putExtra(Intent.EXTRA_SUBJECT, uri.getSubject());
 				intent.putExtra(Intent.EXTRA_TEXT, uri.getBody());
-			} catch (ParseException e) {
-				intent.putExtra(Intent.EXTRA_EMAIL, new String[]{content.toString()});
+			} else {
+				intent.putExtra(Intent.EXTRA_EMAIL, new String[]{getContent().toString()});
 			}
 			String text = context.getString(R.string.email_qr_send_dlg_title);
 			return Intent.createChooser(intent, text);
@@ -176,21 +234,29 @@ public abstract class QrContent {
 	/** SMS */
 	static class SmsContent extends QrContent {
 		public final static String MATCH = "smsto:(.*)";
+		final static Pattern PATTERN = Pattern.compile(MATCH, Pattern.CASE_INSENSITIVE);
+		private String[] mTokens;
 		public SmsContent(Context c, String s) {
-			super(c, s, c.getString(R.string.title_sms), c.getString(R.string.action_sms), getContent(c, s));
+			super(c, s, R.string.title_sms, R.string.action_sms);
+		}
+		private String[] tokens() {
+			if (mTokens == null) {
+				mTokens = rawContent.split(":");
+			}
+			return mTokens;
 		}
-		private static Spannable getContent(Context c, String raw) {
-			String[] s = raw.split(":");
-			String text = c.getString(R.string.sms_qr_phone_title);
+		protected Spannable render() {
+			String[] s = tokens();
+			String text = context.getString(R.string.sms_qr_phone_title);
 			String res = text + " " + s[1];
 			if (s.length > 2) {
-				text = c.getString(R.string.sms_qr_message_title);
+				text = context.getString(R.string.sms_qr_message_title);
 				res = res + "\n" + text + " " + s[2];
 			}
 			return spannable(res);
 		}
 		public Intent getActionIntent() {
-			String[] s = rawContent.split(":");
+			String[] s = tokens();
 			String uri= s[0] + ":" + s[1];
 			Intent intent = new Intent(Intent.ACTION_SENDTO, Uri.parse(uri));
 			intent.putExtra("compose_mode", true);
@@ -204,8 +270,12 @@ public abstract class QrContent {
 	/** Phone number */
 	static class PhoneNumberContent extends QrContent {
 		public final static String MATCH = "tel:(.*)";
+		final static Pattern PATTERN = Pattern.compile(MATCH, Pattern.CASE_INSENSITIVE);
 		public PhoneNumberContent(Context c, String s) {
-			super(c, s, c.getString(R.string.title_phone), c.getString(R.string.action_phone), spannable(s.substring(4)));
+			super(c, s, R.string.title_phone, R.string.action_phone);
+		}
+		protected Spannable render() {
+			return spannable(rawContent.substring(4));
 		}
 		public Intent getActionIntent() {
 			return new Intent(Intent.ACTION_DIAL, Uri.parse(rawContent));
@@ -215,8 +285,12 @@ public abstract class QrContent {
 	/** Geolocation */
 	static class GeoLocationContent extends QrContent {
 		public final static String MATCH = "geo:(.*)";
+		final static Pattern PATTERN = Pattern.compile(MATCH, Pattern.CASE_INSENSITIVE);
 		public GeoLocationContent(Context c, String s) {
-			super(c, s, c.getString(R.string.title_geo), c.getString(R.string.action_geo), spannable(getContent(c, s)));
+			super(c, s, R.string.title_geo, R.string.action_geo);
+		}
+		protected Spannable render() {
+			return spannable(getContent(context, rawContent));
 		}
 		private static String getContent(Context context, String s) {
 			String[] tokens = s.substring(4).split("\\?q=");
@@ -256,6 +330,7 @@ public abstract class QrContent {
 	/** Contact information */
 	static class ContactContent extends QrContent {
 		public final static String MATCH = "mecard:(.*)";
+		final static Pattern PATTERN = Pattern.compile(MATCH, Pattern.CASE_INSENSITIVE);
 		private static String FIELDS[] = new String[]{"N", "TEL", "ADR", "EMAIL", "ORG"};
 		private static int FIELD_NAMES[] = new int[]{
 				R.string.contact_qr_name_title,
@@ -272,16 +347,25 @@ public abstract class QrContent {
 				ContactsContract.Intents.Insert.COMPANY,
 		};
 
+		private Map<String, String> mTokens;
+
 		public ContactContent(Context c, String s) {
-			super(c, s, c.getString(R.string.title_contact), c.getString(R.string.action_contact), getContent(c, s));
+			super(c, s, R.string.title_contact, R.string.action_contact);
+		}
+
+		private Map<String, String> tokens() {
+			if (mTokens == null) {
+				mTokens = parse(rawContent.substring(7), FIELDS);
+			}
+			return mTokens;
 		}
 
-		private static Spannable getContent(Context c, String s) {
+		protected Spannable render() {
 			StringBuilder res = new StringBuilder();
-			Map<String, String> tokens = parse(s.substring(7), FIELDS);
+			Map<String, String> tokens = tokens();
 			for (int i = 0; i < FIELDS.length; i++) {
 				if (tokens.get(FIELDS[i]) != null) {
-					res.append(c.getString(FIELD_NAMES[i])).append(" ")
+					res.append(context.getString(FIELD_NAMES[i])).append(" ")
 							.append(tokens.get(FIELDS[i])).append('\n');
 				}
 			}
@@ -291,7 +375,7 @@ public abstract class QrContent {
 		public Intent getActionIntent() {
 			Intent intent = new Intent(Intent.ACTION_INSERT);
 			intent.setType(ContactsContract.Contacts.CONTENT_TYPE);
-			Map<String, String> tokens = parse(rawContent.substring(7), FIELDS);
+			Map<String, String> tokens = tokens();
 			for (int i = 0; i < FIELDS.length; i++) {
 				if (tokens.get(FIELDS[i]) != null) {
 					intent.putExtra(INTENT_FIELDS[i], tokens.get(FIELDS[i]));
@@ -304,16 +388,17 @@ public abstract class QrContent {
 	/** Google Play URL */
 	static class GooglePlayContent extends QrContent {
 		public final static String MATCH = "market://(details\\?id=)?(.*)";
+		final static Pattern PATTERN = Pattern.compile(MATCH, Pattern.CASE_INSENSITIVE);
 
 		public GooglePlayContent(Context c, String s) {
-			super(c, s, c.getString(R.string.title_market), c.getString(R.string.action_market), getContent(s));
+			super(c, s, R.string.title_market, R.string.action_market);
 		}
-		private static Spannable getContent(String s) {
-			Matcher m = Pattern.compile(MATCH).matcher(s);
+		protected Spannable render() {
+			Matcher m = PATTERN.matcher(rawContent);
 			if (m.matches() && m.group(1) != null) {
 				return spannable(m.group(2));
 			} else {
-				return spannable(s);
+				return spannable(rawContent);
 			}
 		}
 	}
@@ -321,18 +406,26 @@ public abstract class QrContent {
 	/** WiFi access point */
 	static class WifiContent extends QrContent {
 		public final static String MATCH = "wifi:(.*)";
+		final static Pattern PATTERN = Pattern.compile(MATCH, Pattern.CASE_INSENSITIVE);
 		private final static String[] FIELDS = new String[]{"T", "S", "P"};
 		private final static int[] FIELD_NAMES = new int[]{
 				R.string.wifi_qr_security_title,
 				R.string.wifi_qr_ssid_title,
 				R.string.wifi_qr_password_title,
 		};
+		private Map<String, String> mTokens;
 		public WifiContent(Context c, String s) {
-			super(c, s, c.getString(R.string.title_wifi), c.getString(R.string.action_wifi), getContent(c, s));
+			super(c, s, R.string.title_wifi, R.string.action_wifi);
+		}
+		private Map<String, String> tokens() {
+			if (mTokens == null) {
+				mTokens = parse(rawContent.substring(5), FIELDS);
+			}
+			return mTokens;
 		}
-		public static Spannable getContent(Context context, String s) {
+		protected Spannable render() {
 			StringBuilder res = new StringBuilder();
-			Map<String, String> tokens = parse(s.substring(5), FIELDS);
+			Map<String, String> tokens = tokens();
 			for (int i = 0; i < FIELDS.length; i++) {
 				if (tokens.get(FIELDS[i]) != null) {
 					res.append(context.getString(FIELD_NAMES[i])).append(' ')
@@ -343,7 +436,7 @@ public abstract class QrContent {
 		}
 
 		public Intent getActionIntent() {
-			String passwd = parse(rawContent.substring(5), FIELDS).get("P");
+			String passwd = tokens().get("P");
 			if (passwd != null) {
 				copyToClipboard(context, passwd);
 			}
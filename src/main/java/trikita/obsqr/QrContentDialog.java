@@ -46,15 +46,16 @@ public class QrContentDialog extends FrameLayout {
 
 	public void open(QrContent content) {
 		mContent = content;
-		mTitleText.setText(mContent.title);
-		mContentText.setText(mContent.content);
-		mActionButton.setText(mContent.action);
+		String action = mContent.getAction();
+		mTitleText.setText(mContent.getTitle());
+		mContentText.setText(mContent.getContent());
+		mActionButton.setText(action);
 		removeCallbacks(mCloseDialogRunnable);
 		postDelayed(mCloseDialogRunnable, DURATION_OF_KEEPING_TEXT_ON);
 		setVisibility(View.VISIBLE);
 
 		RelativeLayout.LayoutParams params = (RelativeLayout.LayoutParams) mCancelButton.getLayoutParams();
-		if (mContent.action.length() < MAX_HORIZONTAL_BUTTON_TEXT_LENGTH) {
+		if (action.length() < MAX_HORIZONTAL_BUTTON_TEXT_LENGTH) {
 			params.addRule(RelativeLayout.BELOW, 0);
 			params.addRule(RelativeLayout.LEFT_OF, R.id.btn_action);
 			params.addRule(RelativeLayout.ALIGN_PARENT_RIGHT, 0);
@@ -65,6 +66,15 @@ public class QrContentDialog extends FrameLayout {
 		}
 	}
 
+	/* Postpones closing of the open dialog, e.g. while its code stays in view */
+	public void keepOpen() {
+		if (mContent == null) {
+			return;
+		}
+		removeCallbacks(mCloseDialogRunnable);
+		postDelayed(mCloseDialogRunnable, DURATION_OF_KEEPING_TEXT_ON);
+	}
+
 	public boolean close() {
 		if (mContent == null) {
 			return false;
@@ -0,0 +1,119 @@
+package trikita.obsqr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/* Raw payload of a decoded code in a reusable direct buffer, filled by
+ * QrDecoder.decode() without allocating on the Java heap once the buffer is
+ * big enough. The buffer starts with the payload length, symbology and
+ * quality as native order ints, followed by the payload bytes. Text is
+ * only materialized on request.
+ */
+public class QrPayload {
+
+	final static int HEADER_SIZE = 12;
+
+	private final static int DEFAULT_CAPACITY = 1024;
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	private ByteBuffer mBuffer;
+
+	public QrPayload() {
+		mBuffer = allocate(HEADER_SIZE + DEFAULT_CAPACITY);
+	}
+
+	private static ByteBuffer allocate(int capacity) {
+		return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+	}
+
+	/* Payload bytes, 0 for an empty payload */
+	public int length() {
+		return mBuffer.getInt(0);
+	}
+
+	/* One of QrDecoder.SYMBOLOGY_* constants */
+	public int getSymbology() {
+		return mBuffer.getInt(4);
+	}
+
+	public int getQuality() {
+		return mBuffer.getInt(8);
+	}
+
+	public byte getByte(int i) {
+		if (i < 0 || i >= length()) {
+			throw new IndexOutOfBoundsException("No byte " + i);
+		}
+		return mBuffer.get(HEADER_SIZE + i);
+	}
+
+	/* Copies the payload into dst at offset, returns the number of bytes */
+	public int getBytes(byte[] dst, int offset) {
+		int n = length();
+		ByteBuffer b = mBuffer.duplicate();
+		b.position(HEADER_SIZE);
+		b.get(dst, offset, n);
+		return n;
+	}
+
+	/* Allocates a string from the payload, decoded as UTF-8 */
+	public String getText() {
+		byte[] data = new byte[length()];
+		getBytes(data, 0);
+		return new String(data, UTF_8);
+	}
+
+	public boolean contentEquals(QrPayload other) {
+		int n = length();
+		if (n != other.length()) {
+			return false;
+		}
+		for (int i = HEADER_SIZE; i < HEADER_SIZE + n; i++) {
+			if (mBuffer.get(i) != other.mBuffer.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Copies payload and metadata of another payload into this one */
+	public void set(QrPayload other) {
+		int size = HEADER_SIZE + other.length();
+		reserve(size);
+		ByteBuffer src = other.mBuffer.duplicate();
+		src.position(0).limit(size);
+		mBuffer.clear();
+		mBuffer.put(src);
+		mBuffer.clear();
+	}
+
+	public void clear() {
+		mBuffer.putInt(0, 0);
+		mBuffer.putInt(4, 0);
+		mBuffer.putInt(8, 0);
+	}
+
+	void set(int symbology, int quality, byte[] data) {
+		reserve(HEADER_SIZE + data.length);
+		mBuffer.putInt(0, data.length);
+		mBuffer.putInt(4, symbology);
+		mBuffer.putInt(8, quality);
+		mBuffer.position(HEADER_SIZE);
+		mBuffer.put(data);
+		mBuffer.clear();
+	}
+
+	/* Buffer to be filled by native code, see reserve() */
+	ByteBuffer buffer() {
+		return mBuffer;
+	}
+
+	/* Makes room for `size` bytes including the header, contents are lost
+	 * when the buffer has to grow */
+	void reserve(int size) {
+		if (mBuffer.capacity() < size) {
+			mBuffer = allocate(Math.max(size, mBuffer.capacity() * 2));
+		}
+	}
+}
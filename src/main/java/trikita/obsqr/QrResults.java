@@ -0,0 +1,146 @@
+package trikita.obsqr;
+
+import android.graphics.Point;
+
+import java.nio.charset.Charset;
+
+/* Reusable container for all codes decoded from one frame. Symbols are kept
+ * in flat arrays instead of an object per symbol, the arrays only grow, so
+ * a container reused for every frame stops allocating once it's big enough.
+ *
+ * Payload of symbol i is getDataLength(i) bytes of getData() starting at
+ * getDataOffset(i). Location is a polygon of getPointCount(i) points in frame
+ * coordinates, four corners for QR codes.
+ */
+public class QrResults {
+
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	int mCount;
+	int[] mSymbologies;
+	int[] mQualities;
+	/* Symbol i spans [mDataStart[i], mDataStart[i+1]) of mData */
+	int[] mDataStart;
+	byte[] mData;
+	/* Symbol i has points [mPointStart[i], mPointStart[i+1]), x and y of
+	 * point j are mPoints[2*j] and mPoints[2*j+1] */
+	int[] mPointStart;
+	int[] mPoints;
+
+	public QrResults() {
+		this(4, 256);
+	}
+
+	public QrResults(int symbols, int dataBytes) {
+		mSymbologies = new int[symbols];
+		mQualities = new int[symbols];
+		mDataStart = new int[symbols + 1];
+		mData = new byte[dataBytes];
+		mPointStart = new int[symbols + 1];
+		mPoints = new int[symbols * 8];
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public void clear() {
+		mCount = 0;
+	}
+
+	/* One of QrDecoder.SYMBOLOGY_* constants */
+	public int getSymbology(int i) {
+		return mSymbologies[check(i)];
+	}
+
+	/* Decoder specific confidence, only meaningful for comparing symbols
+	 * from the same decoder, larger is better */
+	public int getQuality(int i) {
+		return mQualities[check(i)];
+	}
+
+	/* Backing array of all payloads, valid until the next decode */
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getDataOffset(int i) {
+		return mDataStart[check(i)];
+	}
+
+	public int getDataLength(int i) {
+		check(i);
+		return mDataStart[i + 1] - mDataStart[i];
+	}
+
+	/* Payload decoded as UTF-8, allocates a new string */
+	public String getText(int i) {
+		return new String(mData, getDataOffset(i), getDataLength(i), UTF_8);
+	}
+
+	public int getPointCount(int i) {
+		check(i);
+		return mPointStart[i + 1] - mPointStart[i];
+	}
+
+	public int getPointX(int i, int j) {
+		return mPoints[2 * (mPointStart[check(i)] + j)];
+	}
+
+	public int getPointY(int i, int j) {
+		return mPoints[2 * (mPointStart[check(i)] + j) + 1];
+	}
+
+	/* Makes room for more symbols with the given total payload size and
+	 * number of location points, keeping the existing ones */
+	void reserve(int symbols, int dataBytes, int points) {
+		int count = mCount + symbols;
+		if (count > mSymbologies.length) {
+			int n = Math.max(count, mSymbologies.length * 2);
+			mSymbologies = grow(mSymbologies, n);
+			mQualities = grow(mQualities, n);
+			mDataStart = grow(mDataStart, n + 1);
+			mPointStart = grow(mPointStart, n + 1);
+		}
+		int size = mDataStart[mCount] + dataBytes;
+		if (size > mData.length) {
+			byte[] data = new byte[Math.max(size, mData.length * 2)];
+			System.arraycopy(mData, 0, data, 0, mDataStart[mCount]);
+			mData = data;
+		}
+		int coords = 2 * (mPointStart[mCount] + points);
+		if (coords > mPoints.length) {
+			mPoints = grow(mPoints, Math.max(coords, mPoints.length * 2));
+		}
+	}
+
+	void add(int symbology, int quality, byte[] data, Point[] corners) {
+		int points = (corners == null ? 0 : corners.length);
+		reserve(1, data.length, points);
+		int i = mCount;
+		mSymbologies[i] = symbology;
+		mQualities[i] = quality;
+		System.arraycopy(data, 0, mData, mDataStart[i], data.length);
+		mDataStart[i + 1] = mDataStart[i] + data.length;
+		int p = mPointStart[i];
+		for (int j = 0; j < points; j++, p++) {
+			mPoints[2 * p] = corners[j].x;
+			mPoints[2 * p + 1] = corners[j].y;
+		}
+		mPointStart[i + 1] = p;
+		mCount++;
+	}
+
+	private int check(int i) {
+		if (i < 0 || i >= mCount) {
+			throw new IndexOutOfBoundsException("Symbol " + i + " of " + mCount);
+		}
+		return i;
+	}
+
+	private static int[] grow(int[] a, int n) {
+		int[] b = new int[n];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
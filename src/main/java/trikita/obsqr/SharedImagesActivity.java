@@ -0,0 +1,144 @@
+package trikita.obsqr;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Decodes images shared with ACTION_SEND or ACTION_SEND_MULTIPLE, e.g. from
+ * the gallery, and lists their codes as they are decoded. Tapping a code
+ * performs its action, like the dialog of the camera screen does.
+ */
+public class SharedImagesActivity extends Activity implements BatchDecoder.Callback {
+
+	private BatchDecoder mBatchDecoder;
+	private TextView mProgressText;
+	private final ResultsAdapter mAdapter = new ResultsAdapter();
+
+	private int mDone;
+	private int mFound;
+
+	/* Results by image index, content is null until the image is decoded
+	 * and stays null when there is no code */
+	private static class ResultsAdapter extends BaseAdapter {
+		QrContent[] contents = new QrContent[0];
+		boolean[] decoded = new boolean[0];
+
+		void reset(int count) {
+			contents = new QrContent[count];
+			decoded = new boolean[count];
+			notifyDataSetChanged();
+		}
+
+		@Override
+		public int getCount() {
+			return contents.length;
+		}
+
+		@Override
+		public Object getItem(int position) {
+			return contents[position];
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return position;
+		}
+
+		@Override
+		public View getView(int position, View view, ViewGroup parent) {
+			if (view == null) {
+				view = View.inflate(parent.getContext(), android.R.layout.simple_list_item_2, null);
+			}
+			TextView title = view.findViewById(android.R.id.text1);
+			TextView content = view.findViewById(android.R.id.text2);
+			QrContent qr = contents[position];
+			if (qr != null) {
+				title.setText(qr.getTitle());
+				content.setText(qr.getContent());
+			} else {
+				title.setText(decoded[position] ? R.string.batch_not_found : R.string.batch_pending);
+				content.setText(null);
+			}
+			return view;
+		}
+	}
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.shared_images);
+
+		mProgressText = findViewById(R.id.tv_progress);
+		ListView list = findViewById(R.id.list);
+		list.setAdapter(mAdapter);
+		list.setOnItemClickListener((parent, view, position, id) -> {
+			QrContent content = mAdapter.contents[position];
+			if (content != null) {
+				content.performAction();
+			}
+		});
+
+		mBatchDecoder = new BatchDecoder(this, this);
+		decode(getIntent());
+	}
+
+	@Override
+	protected void onDestroy() {
+		mBatchDecoder.close();
+		super.onDestroy();
+	}
+
+	private void decode(Intent intent) {
+		List<Uri> uris = new ArrayList<>();
+		if (Intent.ACTION_SEND.equals(intent.getAction())) {
+			Uri uri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+			if (uri != null) {
+				uris.add(uri);
+			}
+		} else if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+			List<Parcelable> extras = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+			if (extras != null) {
+				for (Parcelable p : extras) {
+					if (p instanceof Uri) {
+						uris.add((Uri) p);
+					}
+				}
+			}
+		}
+		mDone = mFound = 0;
+		mAdapter.reset(uris.size());
+		updateProgress();
+		mBatchDecoder.decode(uris);
+	}
+
+	@Override
+	public void onImageDecoded(int index, Uri uri, QrContent content) {
+		mDone++;
+		if (content != null) {
+			mFound++;
+		}
+		mAdapter.contents[index] = content;
+		mAdapter.decoded[index] = true;
+		mAdapter.notifyDataSetChanged();
+		updateProgress();
+	}
+
+	@Override
+	public void onBatchDone(int found, int total) {
+		updateProgress();
+	}
+
+	private void updateProgress() {
+		mProgressText.setText(getString(R.string.batch_progress, mDone, mAdapter.getCount(), mFound));
+	}
+}
@@ -1,9 +1,26 @@
 package trikita.obsqr;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
 
 /* This class provides a wrapper for launching zbar library function
- * that implements qr code recognition
+ * that implements qr code recognition. Native scanner is created once and
+ * reused for every frame, so the instance is not thread-safe and must be
+ * closed when no longer needed.
+ *
+ * Image data is never copied: only the luminance plane is read, straight
+ * from the Java array or the direct buffer. A region of interest limits
+ * scanning to a part of the frame, also without copying.
+ *
+ * decode() returns the first code found, decodeAll() returns every code in
+ * the frame with its location, in a QrResults container that can be reused
+ * from frame to frame.
+ *
+ * Bitmaps are decoded from their locked pixels, luminance is computed in
+ * native code.
  */
 
 public class QrDecoder {
@@ -11,7 +28,358 @@ public class QrDecoder {
 		System.loadLibrary("zbar");
 	}
 
-	public QrDecoder(Context c) {}
+	/* Symbologies to look for, QR codes only by default */
+	public final static int SYMBOLOGY_QR = 1;
+	/* EAN-8, EAN-13, UPC-A, UPC-E and ISBN */
+	public final static int SYMBOLOGY_EAN = 1 << 1;
+	public final static int SYMBOLOGY_CODE128 = 1 << 2;
+	public final static int SYMBOLOGY_CODE39 = 1 << 3;
+	public final static int SYMBOLOGY_CODE93 = 1 << 4;
+	public final static int SYMBOLOGY_CODABAR = 1 << 5;
+	public final static int SYMBOLOGY_I25 = 1 << 6;
+	public final static int SYMBOLOGY_DATABAR = 1 << 7;
+	public final static int SYMBOLOGY_ALL = 0xff;
+
+	private long mHandle;
+
+	private boolean mTracking;
+	private long mNativeTime;
+
+	/* Payload size and location points of all symbols of the last scan */
+	private final int[] mTotals = new int[2];
+	private final int[] mFinderBounds = new int[4];
+
+	public QrDecoder(Context c) {
+		mHandle = nativeInit();
+		if (mHandle == 0) {
+			throw new OutOfMemoryError("Failed to create zbar scanner");
+		}
+	}
+
+	/* Decodes NV21 (or plain Y800) image data */
+	public String decode(int width, int height, byte []imgData) {
+		return decode(imgData, width, height, null);
+	}
+
+	/* Decodes only the given region of NV21 image data, null means whole frame */
+	public String decode(byte []imgData, int width, int height, Rect roi) {
+		checkOpen();
+		if (imgData.length < width * height) {
+			return null;
+		}
+		Rect r = clip(roi, width, height);
+		if (r == null) {
+			return null;
+		}
+		return getText(scanRegion(imgData, null, width, r, null));
+	}
+
+	/* Decodes the region of NV21 image data like decode(), but stores the
+	 * raw payload of the first code into a reusable container instead of
+	 * creating a String. Returns false and clears the payload if nothing
+	 * is found. */
+	public boolean decode(byte []imgData, int width, int height, Rect roi, QrPayload payload) {
+		checkOpen();
+		Rect r = (imgData.length < width * height ? null : clip(roi, width, height));
+		long found = (r == null ? 0 : scanRegion(imgData, null, width, r, null));
+		return getPayload(found, payload);
+	}
+
+	/* Decodes a luminance plane from a direct buffer, e.g. the Y plane of a
+	 * YUV_420_888 image. Rows are rowStride bytes apart. */
+	public String decode(ByteBuffer direct, int width, int height, int rowStride) {
+		return decode(direct, width, height, rowStride, null);
+	}
+
+	public String decode(ByteBuffer direct, int width, int height, int rowStride, Rect roi) {
+		checkOpen();
+		if (!checkBuffer(direct, width, height, rowStride)) {
+			return null;
+		}
+		Rect r = clip(roi, width, height);
+		if (r == null) {
+			return null;
+		}
+		return getText(scanRegion(null, direct, rowStride, r, null));
+	}
+
+	public boolean decode(ByteBuffer direct, int width, int height, int rowStride, Rect roi,
+			QrPayload payload) {
+		checkOpen();
+		Rect r = (checkBuffer(direct, width, height, rowStride) ? clip(roi, width, height) : null);
+		long found = (r == null ? 0 : scanRegion(null, direct, rowStride, r, null));
+		return getPayload(found, payload);
+	}
+
+	/* Decodes a still image, e.g. picked from the gallery. Pixels of
+	 * ARGB_8888 and RGB_565 bitmaps are read in place, other configs are
+	 * converted to ARGB_8888 first. Region of interest is in bitmap pixels,
+	 * null means the whole bitmap. */
+	public String decode(Bitmap bitmap, Rect roi) {
+		checkOpen();
+		return getText(scanBitmap(bitmap, roi));
+	}
+
+	public boolean decode(Bitmap bitmap, Rect roi, QrPayload payload) {
+		checkOpen();
+		return getPayload(scanBitmap(bitmap, roi), payload);
+	}
+
+	/* Bitmaps are scanned by the main scanner only, tracking is not used */
+	private long scanBitmap(Bitmap bitmap, Rect roi) {
+		mNativeTime = 0;
+		Rect r = clip(roi, bitmap.getWidth(), bitmap.getHeight());
+		if (r == null) {
+			return 0;
+		}
+		Bitmap.Config config = bitmap.getConfig();
+		boolean converted = (config != Bitmap.Config.ARGB_8888 && config != Bitmap.Config.RGB_565);
+		if (converted) {
+			bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+			if (bitmap == null) {
+				return 0;
+			}
+		}
+		try {
+			int len = nativeDecodeBitmap(mHandle, bitmap, r.left, r.top, r.width(), r.height());
+			mNativeTime = nativeGetScanTime(mHandle);
+			return len >= 0 ? mHandle : 0;
+		} finally {
+			if (converted) {
+				bitmap.recycle();
+			}
+		}
+	}
+
+	private static String getText(long handle) {
+		return handle == 0 ? null : nativeGetText(handle);
+	}
+
+	private static boolean getPayload(long handle, QrPayload payload) {
+		if (handle == 0) {
+			payload.clear();
+			return false;
+		}
+		int size = nativeGetPayload(handle, payload.buffer());
+		if (size > payload.buffer().capacity()) {
+			payload.reserve(size);
+			nativeGetPayload(handle, payload.buffer());
+		}
+		return true;
+	}
+
+	/* Decodes every code in the given region of NV21 image data, null means
+	 * whole frame. Results replace the previous content of the container,
+	 * returns the number of codes found */
+	public int decodeAll(byte []imgData, int width, int height, Rect roi, QrResults results) {
+		checkOpen();
+		results.clear();
+		if (imgData.length < width * height) {
+			return 0;
+		}
+		Rect r = clip(roi, width, height);
+		if (r != null) {
+			scanRegion(imgData, null, width, r, results);
+		}
+		return results.size();
+	}
+
+	public int decodeAll(ByteBuffer direct, int width, int height, int rowStride, Rect roi,
+			QrResults results) {
+		checkOpen();
+		results.clear();
+		if (!checkBuffer(direct, width, height, rowStride)) {
+			return 0;
+		}
+		Rect r = clip(roi, width, height);
+		if (r != null) {
+			scanRegion(null, direct, rowStride, r, results);
+		}
+		return results.size();
+	}
+
+	private static boolean checkBuffer(ByteBuffer direct, int width, int height, int rowStride) {
+		if (!direct.isDirect()) {
+			throw new IllegalArgumentException("ByteBuffer must be direct");
+		}
+		if (rowStride < width) {
+			throw new IllegalArgumentException("rowStride < width");
+		}
+		return direct.capacity() >= rowStride * (height - 1) + width;
+	}
+
+	/* Returns the handle of the scanner holding the first decoded code, 0
+	 * if there is none. With a results container all codes are collected
+	 * into it and 0 is returned. */
+	private long scanRegion(byte[] array, ByteBuffer buffer, int stride, Rect r,
+			QrResults results) {
+		mNativeTime = 0;
+		if (mTracking && results == null) {
+			boolean tracked = track(mHandle, array, buffer, stride, r);
+			mNativeTime = nativeGetScanTime(mHandle);
+			if (tracked) {
+				return mHandle;
+			}
+		}
+		boolean found = false;
+		if (results != null) {
+			scanAll(mHandle, array, buffer, stride, r.left, r.top, r.width(), r.height(),
+					results, mTotals);
+		} else {
+			found = scan(mHandle, array, buffer, stride, r.left, r.top, r.width(), r.height());
+		}
+		mNativeTime += nativeGetScanTime(mHandle);
+		return found ? mHandle : 0;
+	}
+
+	private static boolean track(long handle, byte[] array, ByteBuffer buffer, int stride,
+			Rect r) {
+		if (array != null) {
+			return nativeTrack(handle, array, stride, r.left, r.top, r.width(), r.height()) >= 0;
+		}
+		return nativeTrackBuffer(handle, buffer, stride, r.left, r.top, r.width(), r.height()) >= 0;
+	}
+
+	private static boolean scan(long handle, byte[] array, ByteBuffer buffer, int stride,
+			int x, int y, int width, int height) {
+		if (array != null) {
+			return nativeDecode(handle, array, stride, x, y, width, height) >= 0;
+		}
+		return nativeDecodeBuffer(handle, buffer, stride, x, y, width, height) >= 0;
+	}
+
+	/* Appends all symbols of the scan to the results, `totals` is a scratch
+	 * array for the payload size and number of points to reserve */
+	private static void scanAll(long handle, byte[] array, ByteBuffer buffer, int stride,
+			int x, int y, int width, int height, QrResults results, int[] totals) {
+		int n;
+		if (array != null) {
+			n = nativeDecodeAll(handle, array, stride, x, y, width, height, totals);
+		} else {
+			n = nativeDecodeAllBuffer(handle, buffer, stride, x, y, width, height, totals);
+		}
+		if (n > 0) {
+			results.reserve(n, totals[0], totals[1]);
+			nativeGetResults(handle, results.mData, results.mDataStart, results.mSymbologies,
+					results.mQualities, results.mPoints, results.mPointStart, results.mCount);
+			results.mCount += n;
+		}
+	}
+
+	/* Enables only the given SYMBOLOGY_* set. Linear decoders may also be
+	 * left out of libzbar.so at build time, see ZBAR_QR_ONLY in Android.mk */
+	public void setSymbologies(int symbologies) {
+		checkOpen();
+		nativeSetSymbologies(mHandle, symbologies);
+	}
+
+	/* Enables two-stage decoding: frames are first scanned downscaled by
+	 * `scale` (2 or 4), and only the area around QR finder patterns found
+	 * there is scanned at full resolution. 1 disables it (default). */
+	public void setDownscaledScan(int scale) {
+		checkOpen();
+		if (scale != 1 && scale != 2 && scale != 4) {
+			throw new IllegalArgumentException("Unsupported scale " + scale);
+		}
+		nativeSetPyramidScale(mHandle, scale);
+	}
+
+	/* Enables tracking mode for decode(): once a code is decoded, the next
+	 * frames are only scanned around its last location, at full resolution.
+	 * A full scan runs again when the code is no longer found there, e.g.
+	 * when it leaves the view. decodeAll() always scans the whole frame. */
+	public void setTracking(boolean tracking) {
+		mTracking = tracking;
+	}
+
+	/* Scans every n-th row and column, 1 means every line (default) */
+	public void setScanDensity(int density) {
+		setAdaptiveScanDensity(density, density);
+	}
+
+	/* Starts scanning at the sparsest density, gets denser when QR finder
+	 * patterns are seen but nothing is decoded, relaxes again after decoded
+	 * or empty frames. Trades CPU time for recognition rate. */
+	public void setAdaptiveScanDensity(int densest, int sparsest) {
+		checkOpen();
+		if (densest < 1 || sparsest < densest) {
+			throw new IllegalArgumentException("Invalid density range " + densest + ".." + sparsest);
+		}
+		nativeSetDensity(mHandle, densest, sparsest);
+	}
+
+	/* Area where QR finder patterns were seen by the last decode, in image
+	 * coordinates. Lets a caller decode that area again at a higher
+	 * resolution when a downscaled image gave nothing. Returns false if no
+	 * finder patterns were seen. */
+	public boolean getFinderBounds(Rect bounds) {
+		checkOpen();
+		if (!nativeGetFinderBounds(mHandle, mFinderBounds)) {
+			return false;
+		}
+		bounds.set(mFinderBounds[0], mFinderBounds[1], mFinderBounds[2], mFinderBounds[3]);
+		return true;
+	}
+
+	/* Time spent in the native scanner by the last decode, in nanoseconds.
+	 * The rest of the decode() time is JNI and Java overhead. */
+	public long getNativeTime() {
+		return mNativeTime;
+	}
+
+	/* Current scan density, changes over time in adaptive mode */
+	public int getScanDensity() {
+		checkOpen();
+		return nativeGetDensity(mHandle);
+	}
+
+	public void close() {
+		if (mHandle != 0) {
+			nativeDestroy(mHandle);
+			mHandle = 0;
+		}
+	}
+
+	private void checkOpen() {
+		if (mHandle == 0) {
+			throw new IllegalStateException("QrDecoder is closed");
+		}
+	}
+
+	private final Rect mClipRect = new Rect();
+
+	private Rect clip(Rect roi, int width, int height) {
+		mClipRect.set(0, 0, width, height);
+		if (roi != null && !mClipRect.intersect(roi)) {
+			return null;
+		}
+		return mClipRect.isEmpty() ? null : mClipRect;
+	}
 
-	public native String decode(int width, int height, byte []imgData);
+	private static native long nativeInit();
+	private static native void nativeDestroy(long handle);
+	private static native void nativeSetSymbologies(long handle, int symbologies);
+	private static native void nativeSetPyramidScale(long handle, int scale);
+	private static native void nativeSetDensity(long handle, int min, int max);
+	private static native int nativeGetDensity(long handle);
+	private static native long nativeGetScanTime(long handle);
+	private static native int nativeDecode(long handle, byte []imgData, int rowStride,
+			int x, int y, int width, int height);
+	private static native int nativeDecodeBuffer(long handle, ByteBuffer buf, int rowStride,
+			int x, int y, int width, int height);
+	private static native int nativeDecodeBitmap(long handle, Bitmap bitmap,
+			int x, int y, int width, int height);
+	private static native int nativeTrack(long handle, byte []imgData, int rowStride,
+			int x, int y, int width, int height);
+	private static native int nativeTrackBuffer(long handle, ByteBuffer buf, int rowStride,
+			int x, int y, int width, int height);
+	private static native String nativeGetText(long handle);
+	private static native int nativeGetPayload(long handle, ByteBuffer payload);
+	private static native boolean nativeGetFinderBounds(long handle, int[] bounds);
+	private static native int nativeDecodeAll(long handle, byte []imgData, int rowStride,
+			int x, int y, int width, int height, int[] totals);
+	private static native int nativeDecodeAllBuffer(long handle, ByteBuffer buf, int rowStride,
+			int x, int y, int width, int height, int[] totals);
+	private static native void nativeGetResults(long handle, byte[] data, int[] dataStart,
+			int[] symbologies, int[] qualities, int[] points, int[] pointStart, int index);
 }